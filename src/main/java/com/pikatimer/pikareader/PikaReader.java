@@ -21,7 +21,9 @@ import com.pikatimer.pikareader.http.HTTPHandler;
 import com.pikatimer.pikareader.readers.ReaderHandler;
 import com.pikatimer.pikareader.status.StatusHandler;
 import com.pikatimer.pikareader.tags.TagDB;
+import com.pikatimer.pikareader.tags.TagDBMerge;
 import com.pikatimer.pikareader.util.DiscoveryListener;
+import java.util.Arrays;
 import java.util.Scanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,11 @@ public class PikaReader {
 
     public static void main(String[] args) {
 
+        // Offline merge of TagDBs copied off of the boxes, see TagDBMerge
+        if (args.length > 0 && "merge".equals(args[0])) {
+            System.exit(TagDBMerge.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         PikaReader pr = new PikaReader();
         pr.start();
 
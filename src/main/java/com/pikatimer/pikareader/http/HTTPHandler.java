@@ -20,13 +20,21 @@ import com.pikatimer.pikareader.conf.PikaConfig;
 import com.pikatimer.pikareader.readers.ReaderHandler;
 import com.pikatimer.pikareader.status.Status;
 import com.pikatimer.pikareader.status.StatusHandler;
+import com.pikatimer.pikareader.tags.RawArchive;
 import com.pikatimer.pikareader.tags.TagDB;
 import com.pikatimer.pikareader.tags.TagRead;
 import com.pikatimer.pikareader.tags.TagReadRouter;
 import com.pikatimer.pikareader.util.DebugLogHolder;
 import io.javalin.Javalin;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.websocket.WsContext;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
@@ -34,7 +42,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -142,7 +150,7 @@ public class HTTPHandler {
                 Instant now = Instant.now();
                 TagRead tr = new TagRead();
                 tr.setEPC("0");
-                tr.setEpochMilli(now.getEpochSecond());
+                tr.setEpochMilli(now.toEpochMilli());
                 tr.setTimestamp(LocalDateTime.now(PikaConfig.getInstance().getTimezoneId()));
                 tr.setTZOffset(ZonedDateTime.ofInstant(now, PikaConfig.getInstance().getTimezoneId()).getOffset().toString());
                 tr.setReaderID(0);
@@ -154,43 +162,135 @@ public class HTTPHandler {
                 ctx.json(tr.toJSON());
             });
 
+            // Bad session names and the like
+            javalinApp.exception(IllegalArgumentException.class, (e, ctx) -> {
+                ctx.status(400).result(e.getMessage());
+            });
+
+            // Sessions (events). Reads go to the current session and rewinds 
+            // and exports default to it, ?session=name picks a different one.
+            javalinApp.get("/session", ctx -> {
+                JSONObject response = new JSONObject();
+                response.put("session", TagDB.getInstance().getSession());
+                response.put("sessions", new JSONArray(TagDB.getInstance().getSessions()));
+                ctx.json(response.toString());
+            });
+
+            // Switch to (and create if needed) a session. A POST so that a
+            // browser prefetch or a retried GET can't switch it by accident.
+            javalinApp.post("/session/{name}", ctx -> {
+                logger.info("HTTPD Request: /session -> Switching to session {}", ctx.pathParam("name"));
+                JSONObject response = new JSONObject();
+                response.put("session", TagDB.getInstance().setSession(ctx.pathParam("name")).get(30, TimeUnit.SECONDS));
+                response.put("timestamp", LocalDateTime.now(PikaConfig.getInstance().getTimezoneId()).format(formatter));
+                ctx.json(response.toString());
+            });
+
             // Rewinds the data. from and to are in ISO_LOCAL_DATE_TIME 2011-12-03T10:15:30
             javalinApp.get("/rewind/{from}/{to}", ctx -> {
 
                 LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
                 LocalDateTime toTime = LocalDateTime.parse(ctx.pathParam("to"));
 
-                JSONArray data = new JSONArray();
-                TagDB.getInstance().getReads().stream().sorted().forEach(read -> {
-                    if (fromTime.isBefore(read.getTimestamp()) && toTime.isAfter(read.getTimestamp())) {
-                        data.put(read.toJSONObject());
-                    }
-                });
-                ctx.json(data.toString());
+                ctx.contentType(ContentType.APPLICATION_JSON).result(TagDB.getInstance().getReadsJSON(ctx.queryParam("session"), fromTime, toTime));
             });
 
             // Rewinds the data. from is in ISO_LOCAL_DATE_TIME: 2011-12-03T10:15:30
             javalinApp.get("/rewind/{from}", ctx -> {
 
                 LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
-                JSONArray data = new JSONArray();
-                TagDB.getInstance().getReads().stream().sorted().forEach(read -> {
+                ctx.contentType(ContentType.APPLICATION_JSON).result(TagDB.getInstance().getReadsJSON(ctx.queryParam("session"), fromTime, null));
+            });
+
+            javalinApp.get("/rewind", ctx -> {
+                ctx.contentType(ContentType.APPLICATION_JSON).result(TagDB.getInstance().getReadsJSON(ctx.queryParam("session"), null, null));
+            });
 
-                    if (fromTime.isBefore(read.getTimestamp())) {
-                        data.put(read.toJSONObject());
-                    }
+            // Incremental sync by sequence number. Returns the next page of 
+            // reads after the given sequence number and the cursor to pass in 
+            // as ?after= for the page after that.
+            javalinApp.get("/reads", ctx -> {
+                String afterParam = ctx.queryParam("after");
+                String limitParam = ctx.queryParam("limit");
+                long after = afterParam == null ? 0 : Long.parseLong(afterParam);
+                int limit = limitParam == null ? 1000 : Math.min(10000, Integer.parseInt(limitParam));
+
+                List<TagRead> reads = TagDB.getInstance().getReadsAfter(ctx.queryParam("session"), after, limit);
+                JSONArray data = new JSONArray();
+                reads.forEach(read -> {
+                    data.put(read.toJSONObject());
                 });
-                ctx.json(data.toString());
+                JSONObject response = new JSONObject();
+                response.put("reads", data);
+                response.put("cursor", reads.isEmpty() ? after : reads.get(reads.size() - 1).getSequence());
+                response.put("more", reads.size() == limit);
+                ctx.json(response.toString());
             });
 
-            javalinApp.get("/rewind", ctx -> {
+            // Every read of one chip. The EPC is in decimal or hex (0x prefix
+            // for an all digit hex EPC). Optional ?from= and ?to= are in 
+            // ISO_LOCAL_DATE_TIME to keep lookups of old data quick.
+            javalinApp.get("/reads/chip/{epc}", ctx -> {
+                String from = ctx.queryParam("from");
+                String to = ctx.queryParam("to");
+                LocalDateTime fromTime = from == null ? null : LocalDateTime.parse(from);
+                LocalDateTime toTime = to == null ? null : LocalDateTime.parse(to);
+
                 JSONArray data = new JSONArray();
-                TagDB.getInstance().getReads().stream().filter(Objects::nonNull).sorted().forEach(read -> {
+                TagDB.getInstance().getChipReads(ctx.queryParam("session"), ctx.pathParam("epc"), fromTime, toTime).forEach(read -> {
                     data.put(read.toJSONObject());
                 });
                 ctx.json(data.toString());
             });
 
+            // Read counts, unique chips and max RSSI per reader / antenna for
+            // charting. ?from= (required) and ?to= are in ISO_LOCAL_DATE_TIME,
+            // ?bucket= is second or minute (the default).
+            javalinApp.get("/stats/timeline", ctx -> {
+                String from = ctx.queryParam("from");
+                String to = ctx.queryParam("to");
+                LocalDateTime fromTime = from == null ? null : LocalDateTime.parse(from);
+                LocalDateTime toTime = to == null ? null : LocalDateTime.parse(to);
+
+                ctx.json(TagDB.getInstance().getTimeline(ctx.queryParam("session"), fromTime, toTime, ctx.queryParam("bucket")).toString());
+            });
+
+            // Streams the data as newline delimited JSON straight off of the disk. 
+            // Unlike a rewind this is safe to use for the entire history.
+            javalinApp.get("/export/{from}/{to}", ctx -> {
+                LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
+                LocalDateTime toTime = LocalDateTime.parse(ctx.pathParam("to"));
+                export(ctx, fromTime, toTime);
+            });
+
+            javalinApp.get("/export/{from}", ctx -> {
+                LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
+                export(ctx, fromTime, null);
+            });
+
+            javalinApp.get("/export", ctx -> {
+                export(ctx, null, null);
+            });
+
+            // Streams every raw (pre-gating) read from the raw archive as newline
+            // delimited JSON. from and to are in ISO_LOCAL_DATE_TIME 2011-12-03T10:15:30
+            javalinApp.get("/raw/{from}/{to}", ctx -> {
+                LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
+                LocalDateTime toTime = LocalDateTime.parse(ctx.pathParam("to"));
+                exportRaw(ctx, fromTime, toTime);
+            });
+
+            javalinApp.get("/raw/{from}", ctx -> {
+                LocalDateTime fromTime = LocalDateTime.parse(ctx.pathParam("from"));
+                exportRaw(ctx, fromTime, null);
+            });
+
+            // Checks the checksums of every file in the session (or ?session=name)
+            javalinApp.get("/db/verify", ctx -> {
+                logger.info("HTTPD Request: /db/verify");
+                ctx.json(TagDB.getInstance().verify(ctx.queryParam("session")).toString(4));
+            });
+
             // TODO: Status Page
             javalinApp.get("/status", ctx -> {
                 ctx.json(StatusHandler.getInstance().getStatus().toString(4));
@@ -211,6 +311,28 @@ public class HTTPHandler {
 
     }
 
+    private void exportRaw(Context ctx, LocalDateTime from, LocalDateTime to) throws IOException {
+        if (!RawArchive.getInstance().isEnabled()) {
+            ctx.status(404).result("The raw archive is not enabled");
+            return;
+        }
+        ctx.contentType("application/x-ndjson");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(ctx.outputStream(), StandardCharsets.UTF_8)))) {
+            RawArchive.getInstance().forEach(from, to, read -> {
+                out.println(read.toJSON());
+            });
+        }
+    }
+
+    private void export(Context ctx, LocalDateTime from, LocalDateTime to) throws IOException {
+        ctx.contentType("application/x-ndjson");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(ctx.outputStream(), StandardCharsets.UTF_8)))) {
+            TagDB.getInstance().exportReads(ctx.queryParam("session"), from, to, read -> {
+                out.println(read.toJSON());
+            });
+        }
+    }
+
     public void stopHTTPD() {
         javalinApp.stop();
     }
@@ -20,8 +20,10 @@ import com.pikatimer.pikareader.conf.PikaConfig;
 import com.pikatimer.pikareader.status.StatusHandler;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.json.JSONArray;
@@ -81,6 +83,7 @@ public class ReaderHandler {
         if (readerConfig.isEmpty()) {
             readerConfig.put("Gating", 3); // Default Gating of 3 seconds
             readerConfig.put("Gating Style", ReaderGatingStyle.READER);
+            readerConfig.put("Gating Threads", 0); // 0 for one per core
             JSONArray defaultReaders = new JSONArray();
             JSONObject defaultReader = new JSONObject();
             defaultReader.put("Index", 0);
@@ -96,12 +99,19 @@ public class ReaderHandler {
 
         // itterate through the readers and set them up
         CountDownLatch latch = new CountDownLatch(readerConfig.getJSONArray("Readers").length());
+        Set<Integer> indexes = new HashSet<>();
         readerConfig.getJSONArray("Readers").forEach(r -> {
             JSONObject rc = (JSONObject) r; // FFS
             Integer index = rc.optInt("Index", 0);
             String type = rc.optString("Type", "NOT SET");
 
-            if (rfidReaderFactory.containsKey(type)) {
+            // The index is the reader ID on every read, and each reader gets
+            // its own single producer rings downstream keyed by it, so two
+            // readers can't share one.
+            if (!indexes.add(index)) {
+                logger.error("RFID Reader Config Error! Index {} is used by more than one reader, skipping the {} reader at {}", index, type, rc.optString("IP", ""));
+                latch.countDown();
+            } else if (rfidReaderFactory.containsKey(type)) {
                 Thread.startVirtualThread(() -> {
                     RFIDReader reader = rfidReaderFactory.get(type).create(rc);
                     readers.put(index, reader);
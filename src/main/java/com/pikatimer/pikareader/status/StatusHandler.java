@@ -20,17 +20,21 @@ import com.pikatimer.pikareader.conf.PikaConfig;
 import com.pikatimer.pikareader.http.HTTPHandler;
 import com.pikatimer.pikareader.readers.RFIDReader;
 import com.pikatimer.pikareader.readers.ReaderHandler;
+import com.pikatimer.pikareader.tags.TagDB;
 import com.pikatimer.pikareader.tags.TagRead;
+import com.pikatimer.pikareader.tags.RawArchive;
+import com.pikatimer.pikareader.tags.TagReadProcessor;
+import com.pikatimer.pikareader.tags.TagReadRouter;
+import com.pikatimer.pikareader.util.SpscRing;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -46,7 +50,13 @@ import org.slf4j.LoggerFactory;
 public class StatusHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(StatusHandler.class);
-    private static final BlockingQueue<TagRead> tagQueue = new ArrayBlockingQueue<>(100000);
+
+    // Raw reads for the per second antenna stats, one ring per reader so the
+    // reader threads never wait on each other. Readers with an id outside of
+    // 0 - MAX_READERS share the last ring and take turns.
+    private static final int MAX_READERS = 1024;
+    private static volatile SpscRing<TagRead>[] readerRings = SpscRing.newArray(0);
+    private static final Object sharedRingLock = new Object();
 
     private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
 
@@ -56,6 +66,7 @@ public class StatusHandler {
     DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSS");
 
     private Integer totalReads = 0;
+    private long droppedReads = 0;
     private TagRead lastChipRead;
 
     private JSONObject lastStatus = new JSONObject();
@@ -93,6 +104,10 @@ public class StatusHandler {
                 statusReport.put("lastChipReadTime", lastChipRead.getTimestamp().format(formatter));
             }
             statusReport.put("unitID", pikaConfig.getStringValue("UnitID"));
+            statusReport.put("db", TagDB.getInstance().getStatus());
+            statusReport.put("router", TagReadRouter.getInstance().getStatus());
+            statusReport.put("rawArchive", RawArchive.getInstance().getStatus());
+            statusReport.put("gating", TagReadProcessor.getInstance().getStatus());
 
             logger.trace("Getting readers");
 
@@ -128,9 +143,17 @@ public class StatusHandler {
             logger.trace("Done enumerating readers");
 
             List<TagRead> tags = new ArrayList<>();
-            tagQueue.drainTo(tags);
+            long dropped = 0;
+            for (SpscRing<TagRead> ring : readerRings) {
+                if (ring != null) {
+                    ring.drainTo(tags, Integer.MAX_VALUE);
+                    dropped += ring.dropped();
+                }
+            }
 
-            statusReport.put("Raw Tag Reads/s", tags.size());
+            // anything that didn't fit in a ring still counts
+            statusReport.put("Raw Tag Reads/s", tags.size() + dropped - droppedReads);
+            droppedReads = dropped;
 
             logger.trace("Found {} tags in the last update interval", tags.size());
 
@@ -199,17 +222,46 @@ public class StatusHandler {
 
     }
 
+    /**
+     * Count a raw read towards the per second stats. Called from the reader
+     * threads, one thread per reader. Never blocks or throws, if the status
+     * thread has fallen behind the read is only counted.
+     */
     public void postRead(TagRead read) {
-        tagQueue.add(read);
+        Integer id = read.getReaderID();
+        if (id != null && id >= 0 && id < MAX_READERS) {
+            readerRing(id).offer(read);
+        } else {
+            synchronized (sharedRingLock) {
+                readerRing(MAX_READERS).offer(read);
+            }
+        }
     }
 
     public void postReads(Collection<TagRead> reads) {
         reads.forEach(r -> {
-            tagQueue.add(r);
+            postRead(r);
         });
 
     }
 
+    private static SpscRing<TagRead> readerRing(int reader) {
+        SpscRing<TagRead>[] r = readerRings;
+        if (reader < r.length && r[reader] != null) {
+            return r[reader];
+        }
+        synchronized (StatusHandler.class) {
+            r = readerRings;
+            if (reader < r.length && r[reader] != null) {
+                return r[reader];
+            }
+            SpscRing<TagRead>[] grown = Arrays.copyOf(r, Math.max(r.length, reader + 1));
+            grown[reader] = new SpscRing<>(16384);
+            readerRings = grown;
+            return grown[reader];
+        }
+    }
+
     public void clearReadCount() {
         totalReads = 0;
         lastChipRead = null;
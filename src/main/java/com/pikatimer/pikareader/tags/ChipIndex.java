@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Secondary index from an EPC id to the rows in a TagReadColumns store that
+ * hold that chip's reads, so "when did bib 123 cross the mat" only has to
+ * look at bib 123's reads.
+ *
+ * Each chip has a posting list of row numbers in the order they were added.
+ * Like the column store there is a single writer and any number of lock
+ * free readers: the writer fills in the next slot and then bumps the
+ * volatile count, and a full list is copied into a bigger one before the new
+ * one is swapped in so a reader holding the old one still sees a consistent
+ * list.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class ChipIndex {
+
+    private static final class Postings {
+
+        final long[] rows;
+        final int start;
+        volatile int count;
+
+        Postings(long[] rows, int start, int count) {
+            this.rows = rows;
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    private static final long[] NO_ROWS = new long[0];
+
+    // Indexed by epcId, only ever replaced by a bigger copy
+    private volatile AtomicReferenceArray<Postings> postings = new AtomicReferenceArray<>(1024);
+
+    /**
+     * Add a row for the chip. Only ever called from the writer thread.
+     */
+    void add(int epcId, long row) {
+        AtomicReferenceArray<Postings> a = postings;
+        if (epcId >= a.length()) {
+            AtomicReferenceArray<Postings> b = new AtomicReferenceArray<>(Math.max(a.length() * 2, epcId + 1));
+            for (int i = 0; i < a.length(); i++) {
+                b.set(i, a.get(i));
+            }
+            postings = b;
+            a = b;
+        }
+
+        Postings p = a.get(epcId);
+        if (p == null) {
+            p = new Postings(new long[8], 0, 0);
+            a.set(epcId, p);
+        } else if (p.start + p.count == p.rows.length) {
+            // Grow, or just slide down if the front has been trimmed
+            int count = p.count;
+            long[] rows = count * 2 <= p.rows.length ? p.rows.clone() : new long[p.rows.length * 2];
+            System.arraycopy(p.rows, p.start, rows, 0, count);
+            p = new Postings(rows, 0, count);
+            a.set(epcId, p);
+        }
+        int n = p.count;
+        p.rows[p.start + n] = row;
+        // publish
+        p.count = n + 1;
+    }
+
+    /**
+     * The rows for the chip in the order they were added. Some of them may
+     * have been dropped from the store since, the caller has to check.
+     */
+    long[] rows(int epcId) {
+        AtomicReferenceArray<Postings> a = postings;
+        if (epcId < 0 || epcId >= a.length()) {
+            return NO_ROWS;
+        }
+        Postings p = a.get(epcId);
+        if (p == null) {
+            return NO_ROWS;
+        }
+        int n = p.count;
+        return Arrays.copyOfRange(p.rows, p.start, p.start + n);
+    }
+
+    /**
+     * Forget every row before the first row still in the store. Only ever
+     * called from the writer thread.
+     */
+    void dropBefore(long firstRow) {
+        AtomicReferenceArray<Postings> a = postings;
+        for (int i = 0; i < a.length(); i++) {
+            Postings p = a.get(i);
+            if (p == null || p.count == 0 || p.rows[p.start] >= firstRow) {
+                continue;
+            }
+            int n = p.count;
+            int skip = 0;
+            while (skip < n && p.rows[p.start + skip] < firstRow) {
+                skip++;
+            }
+            if (skip == n) {
+                a.set(i, null);
+            } else {
+                // share the array, the writer only ever writes past the end
+                a.set(i, new Postings(p.rows, p.start + skip, n - skip));
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every distinct EPC to a small int id.
+ *
+ * A race produces millions of reads from a few thousand chips, so rather than
+ * every read carrying its own copy of the EPC String (and the decimal version,
+ * and the byte form for the codec) each read carries the id and everybody
+ * shares the one copy in here.
+ *
+ * EPCs are stored in a canonical form: the unsigned big-endian bytes with the
+ * leading zero bytes stripped, and the lower case hex of those bytes. Other
+ * spellings of the same EPC (upper case, leading zeros) map to the same id.
+ *
+ * The ids only live in memory. Everything on disk holds the EPC bytes, so
+ * the ids are free to come out different after a restart.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+public class EPCDictionary {
+
+    // Both maps point at the same ids, the String map also holds any
+    // non-canonical spellings we have seen.
+    private final Map<String, Integer> byHex = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, Integer> byBytes = new ConcurrentHashMap<>();
+
+    // Indexed by id. Slots are filled in before the id is published in the
+    // maps above, and the arrays are only ever replaced by a bigger copy.
+    private volatile String[] hex = new String[1024];
+    private volatile String[] decimal = new String[1024];
+    private volatile byte[][] bytes = new byte[1024][];
+    private volatile int size = 0;
+
+    private static class SingletonHolder {
+
+        private static final EPCDictionary INSTANCE = new EPCDictionary();
+
+    }
+
+    public static EPCDictionary getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    private EPCDictionary() {
+    }
+
+    /**
+     * The id for a hex EPC, assigning a new one if we have not seen it
+     * before.
+     */
+    public int intern(String hexEPC) {
+        if (hexEPC == null) {
+            hexEPC = "";
+        }
+        Integer id = byHex.get(hexEPC);
+        if (id != null) {
+            return id;
+        }
+        id = intern(canonicalBytes(hexEPC));
+        byHex.putIfAbsent(hexEPC, id);
+        return id;
+    }
+
+    /**
+     * The id for a hex EPC, or -1 if we have never seen it. Unlike intern()
+     * nothing is added.
+     */
+    public int find(String hexEPC) {
+        Integer id = byHex.get(hexEPC);
+        if (id == null) {
+            try {
+                id = byBytes.get(ByteBuffer.wrap(canonicalBytes(hexEPC)));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid EPC: " + hexEPC);
+            }
+        }
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * The id for an EPC in unsigned big-endian form. The array is not kept.
+     */
+    int intern(byte[] epc, int offset, int length) {
+        // skip the leading zeros but keep at least one byte
+        while (length > 1 && epc[offset] == 0) {
+            offset++;
+            length--;
+        }
+        Integer id = byBytes.get(ByteBuffer.wrap(epc, offset, length));
+        if (id != null) {
+            return id;
+        }
+        return intern(Arrays.copyOfRange(epc, offset, offset + length));
+    }
+
+    private synchronized int intern(byte[] canonical) {
+        Integer id = byBytes.get(ByteBuffer.wrap(canonical));
+        if (id != null) {
+            return id;
+        }
+        return add(canonical);
+    }
+
+    // Only called while holding the lock
+    private int add(byte[] canonical) {
+        int id = size;
+        if (id == hex.length) {
+            hex = Arrays.copyOf(hex, id * 2);
+            decimal = Arrays.copyOf(decimal, id * 2);
+            bytes = Arrays.copyOf(bytes, id * 2);
+        }
+        BigInteger value = new BigInteger(1, canonical);
+        hex[id] = value.toString(16);
+        decimal[id] = value.toString();
+        bytes[id] = canonical;
+        size = id + 1;
+
+        byBytes.put(ByteBuffer.wrap(canonical), id);
+        byHex.put(hex[id], id);
+        return id;
+    }
+
+    public String getHex(int id) {
+        return hex[id];
+    }
+
+    public String getDecimal(int id) {
+        return decimal[id];
+    }
+
+    /**
+     * The canonical bytes for an id. Do not modify the array.
+     */
+    byte[] getBytes(int id) {
+        return bytes[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static byte[] canonicalBytes(String hexEPC) {
+        byte[] epc = new BigInteger(hexEPC == null || hexEPC.isEmpty() ? "0" : hexEPC, 16).toByteArray();
+        int start = 0;
+        while (start < epc.length - 1 && epc[start] == 0) {
+            start++;
+        }
+        return Arrays.copyOfRange(epc, start, epc.length);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The open gating windows, keyed by the packed gating key.
+ *
+ * Gating sees every raw read, hundreds a second per antenna in a dense
+ * start, so nothing in here allocates per read. The windows live in a ring
+ * of parallel arrays in the order they were opened, which is also the order
+ * they close in since they are all the same length. An open addressing
+ * (linear probing) table of primitive longs maps a key to its slot in the
+ * ring. Both only ever grow, and are reused from one window to the next.
+ *
+ * Not thread safe. Each gating shard has its own table and only that
+ * shard's TagProcessingThread ever touches it.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+final class GatingTable {
+
+    // keys are epcId << 32 | reader / antenna bits, never negative
+    private static final long EMPTY = -1L;
+
+    // key -> ring slot
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+
+    // open windows, oldest at head
+    private long[] windowKeys;
+    private long[] deadlines;
+    private TagRead[] best;
+    private int ringMask;
+    private int head = 0;
+    private int count = 0;
+
+    GatingTable(int capacity) {
+        int ring = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        windowKeys = new long[ring];
+        deadlines = new long[ring];
+        best = new TagRead[ring];
+        ringMask = ring - 1;
+
+        keys = new long[ring * 2];
+        slots = new int[ring * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * When the oldest open window closes, only valid if there is one.
+     */
+    long nextDeadline() {
+        return deadlines[head];
+    }
+
+    /**
+     * Add a read to its window, opening one that closes at the deadline if
+     * the key doesn't have one yet.
+     */
+    void offer(long key, TagRead r, long deadline) {
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                int slot = slots[i];
+                if (isBetter(r, best[slot])) {
+                    best[slot] = r;
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (count == windowKeys.length) {
+            growRing();
+            // the table was rebuilt
+            offer(key, r, deadline);
+            return;
+        }
+        int slot = (head + count) & ringMask;
+        windowKeys[slot] = key;
+        deadlines[slot] = deadline;
+        best[slot] = r;
+        count++;
+
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    /**
+     * Pull in every deadline after latest to latest, for when the gating
+     * time is lowered. The oldest windows still close first.
+     */
+    void clampDeadlines(long latest) {
+        for (int n = 0; n < count; n++) {
+            int slot = (head + n) & ringMask;
+            if (deadlines[slot] - latest > 0) {
+                deadlines[slot] = latest;
+            }
+        }
+    }
+
+    /**
+     * Close every window whose deadline (System.nanoTime()) is at or before
+     * now, oldest first, and hand the best read from each to out.
+     *
+     * @return the number of windows closed
+     */
+    int closeExpired(long now, Collection<TagRead> out) {
+        int closed = 0;
+        while (count > 0 && deadlines[head] - now <= 0) {
+            out.add(best[head]);
+            best[head] = null;
+            remove(windowKeys[head]);
+            head = (head + 1) & ringMask;
+            count--;
+            closed++;
+        }
+        return closed;
+    }
+
+    // a read without an RSSI never beats one that has it
+    private static boolean isBetter(TagRead r, TagRead current) {
+        if (r.rssi == null) {
+            return false;
+        }
+        return current.rssi == null || current.rssi.compareTo(r.rssi) < 0;
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // backward shift delete so lookups never need tombstones
+    private void remove(long key) {
+        int i = index(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY) {
+                break;
+            }
+            int home = index(keys[j]);
+            // move j back to i unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                slots[i] = slots[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+    }
+
+    // Double the ring (and the table with it), oldest window back at 0
+    private void growRing() {
+        int ring = windowKeys.length * 2;
+        long[] k = new long[ring];
+        long[] d = new long[ring];
+        TagRead[] b = new TagRead[ring];
+        for (int n = 0; n < count; n++) {
+            int slot = (head + n) & ringMask;
+            k[n] = windowKeys[slot];
+            d[n] = deadlines[slot];
+            b[n] = best[slot];
+        }
+        windowKeys = k;
+        deadlines = d;
+        best = b;
+        ringMask = ring - 1;
+        head = 0;
+
+        keys = new long[ring * 2];
+        slots = new int[ring * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        for (int n = 0; n < count; n++) {
+            int i = index(windowKeys[n]);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = windowKeys[n];
+            slots[i] = n;
+        }
+    }
+}
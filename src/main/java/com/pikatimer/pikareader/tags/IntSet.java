@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative ints, so counting the unique chips in a rollup
+ * bucket doesn't box an Integer for every read. Open addressing (linear
+ * probing) like the GatingTable, kept at most half full. Nothing is ever
+ * removed so it only grows.
+ *
+ * Not thread safe.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+final class IntSet {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int mask;
+    private int size = 0;
+
+    IntSet() {
+        this(4);
+    }
+
+    IntSet(int capacity) {
+        keys = new int[Integer.highestOneBit(Math.max(4, capacity - 1)) << 1];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add a key, true if it wasn't already in the set.
+     */
+    boolean add(int key) {
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    private int index(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        int[] old = keys;
+        keys = new int[old.length * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        for (int key : old) {
+            if (key != EMPTY) {
+                int i = index(key);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import com.pikatimer.pikareader.conf.PikaConfig;
+import com.pikatimer.pikareader.util.SpscRing;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional archive of every raw read, before gating.
+ *
+ * Gating throws away all but the strongest read per chip every cycle, which
+ * makes it hard to answer "was my chip read at 10:42?" after the fact. With
+ * the archive turned on every read handed to the TagReadProcessor is also
+ * queued up here and written to its own set of compressed files under
+ * &lt;db&gt;/raw/yyyy/MM/dd/HH/.
+ *
+ * The archive has its own thread, fed by one ring per reader so the reader
+ * threads never wait on each other (or on a lock) to archive a read. Adding
+ * a read never blocks, if the writer can't keep up the read is dropped from
+ * the archive (and counted) rather than holding up gating.
+ *
+ * Reads are collected into blocks of up to 4096 reads (or one second's
+ * worth) and each block is deflated on its own:
+ *
+ * <pre>
+ *  "PKRW" version(int)
+ *  { length(int) count(int) minEpochMilli(long) maxEpochMilli(long) crc(int) deflated records }
+ * </pre>
+ *
+ * so a time range lookup can skip whole blocks by their header without
+ * inflating them. A torn block at the end of a file is ignored.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+public class RawArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(RawArchive.class);
+    private static final PikaConfig pikaConfig = PikaConfig.getInstance();
+
+    static final String RAW_DIR = "raw";
+    static final String RAW_SUFFIX = ".raw";
+
+    private static final byte[] MAGIC = "PKRW".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    private static final int BLOCK_READS = 4096;
+    private static final long BLOCK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // how long the thread naps when every ring is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Readers with an id outside of 0 - MAX_READERS share the last ring and
+    // take turns.
+    private static final int MAX_READERS = 1024;
+
+    private static final DateTimeFormatter hourFormatter = DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH");
+    private static final DateTimeFormatter fileFormatter = DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH/HH-mm-ss.SSS'" + RAW_SUFFIX + "'");
+
+    private final boolean enabled;
+    private final Path rawPath;
+    private final Integer retentionDays;
+    private volatile SpscRing<TagRead>[] readerRings = SpscRing.newArray(0);
+    private final Object sharedRingLock = new Object();
+
+    // Only touched by the RawArchiveThread
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private FileChannel channel;
+    private Path filePath;
+    private String fileHour = "";
+
+    private final AtomicLong archivedReads = new AtomicLong();
+    private final AtomicLong droppedReads = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * SingletonHolder is loaded on the first execution of
+     * Singleton.getInstance() or the first access to SingletonHolder.INSTANCE,
+     * not before.
+     */
+    private static class SingletonHolder {
+
+        private static final RawArchive INSTANCE = new RawArchive();
+
+    }
+
+    public static RawArchive getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    private RawArchive() {
+        // The TagDB sets up the DB config defaults
+        TagDB tagDB = TagDB.getInstance();
+        JSONObject dbConfig = pikaConfig.getKey("DB");
+
+        enabled = dbConfig.optBoolean("Raw Archive", false);
+        retentionDays = dbConfig.optInt("Raw Archive Retention", 30);
+        rawPath = tagDB.getPath().resolve(RAW_DIR);
+
+        if (!enabled) {
+            return;
+        }
+
+        Thread t = new Thread(() -> {
+            List<TagRead> block = new ArrayList<>(BLOCK_READS);
+            long blockStart = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                int drained = 0;
+                for (SpscRing<TagRead> ring : readerRings) {
+                    if (ring != null && block.size() < BLOCK_READS) {
+                        if (block.isEmpty()) {
+                            blockStart = System.nanoTime();
+                        }
+                        drained += ring.drainTo(block, BLOCK_READS - block.size());
+                    }
+                }
+                if (!block.isEmpty() && (block.size() >= BLOCK_READS || System.nanoTime() - blockStart >= BLOCK_NANOS)) {
+                    write(block);
+                    block.clear();
+                } else if (drained == 0) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+            logger.trace("Exiting RawArchiveThread");
+            if (!block.isEmpty()) {
+                write(block);
+            }
+            close();
+        });
+        t.setName("RawArchiveThread");
+        t.setDaemon(true);
+        t.setPriority(1);
+        t.start();
+
+        logger.info("Archiving raw reads to {}", rawPath.toAbsolutePath());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue a read for the archive. Called from the reader threads, one
+     * thread per reader. Never blocks, if the reader's ring is full the read
+     * is dropped from the archive.
+     */
+    public void add(TagRead r) {
+        if (!enabled) {
+            return;
+        }
+        Integer id = r.getReaderID();
+        if (id != null && id >= 0 && id < MAX_READERS) {
+            readerRing(id).offer(r);
+        } else {
+            synchronized (sharedRingLock) {
+                readerRing(MAX_READERS).offer(r);
+            }
+        }
+    }
+
+    private SpscRing<TagRead> readerRing(int reader) {
+        SpscRing<TagRead>[] r = readerRings;
+        if (reader < r.length && r[reader] != null) {
+            return r[reader];
+        }
+        synchronized (this) {
+            r = readerRings;
+            if (reader < r.length && r[reader] != null) {
+                return r[reader];
+            }
+            SpscRing<TagRead>[] grown = Arrays.copyOf(r, Math.max(r.length, reader + 1));
+            grown[reader] = new SpscRing<>(32768);
+            readerRings = grown;
+            return grown[reader];
+        }
+    }
+
+    private void write(List<TagRead> block) {
+        ByteBuffer records = TagReadCodec.encode(block);
+        int length = records.remaining();
+
+        deflater.reset();
+        deflater.setInput(records);
+        deflater.finish();
+        byte[] out = new byte[length / 2 + 64];
+        int compressed = 0;
+        while (!deflater.finished()) {
+            if (compressed == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            compressed += deflater.deflate(out, compressed, out.length - compressed);
+        }
+        ByteBuffer data = ByteBuffer.wrap(out, 0, compressed);
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (TagRead r : block) {
+            min = Math.min(min, r.getEpochMilli());
+            max = Math.max(max, r.getEpochMilli());
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE)
+                .putInt(compressed).putInt(block.size()).putLong(min).putLong(max).putInt(TagReadCodec.crc(data))
+                .flip();
+
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            if (channel == null || !fileHour.equals(now.format(hourFormatter))) {
+                roll(now);
+            }
+            for (ByteBuffer b : List.of(header, data)) {
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+            }
+            archivedReads.addAndGet(block.size());
+            blocks.incrementAndGet();
+            rawBytes.addAndGet(length);
+            compressedBytes.addAndGet(BLOCK_HEADER_SIZE + compressed);
+        } catch (IOException ex) {
+            logger.error("Unable to archive {} raw reads to {}", block.size(), filePath, ex);
+            droppedReads.addAndGet(block.size());
+            close();
+        }
+    }
+
+    private void roll(LocalDateTime now) throws IOException {
+        close();
+
+        fileHour = now.format(hourFormatter);
+        filePath = Path.of(rawPath.toString() + now.format(fileFormatter));
+        Files.createDirectories(filePath.getParent());
+        channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+
+        if (retentionDays > 0) {
+            prune();
+        }
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException ex) {
+                logger.warn("Error closing raw archive file {}", filePath, ex);
+            }
+            channel = null;
+        }
+    }
+
+    // Drop whole hours once they are past the retention
+    private void prune() {
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(retentionDays);
+        try {
+            for (Path hour : TagDBMaintenance.hourDirectories(rawPath)) {
+                if (TagDBMaintenance.hourOf(hour).plusHours(1).isBefore(cutoff)) {
+                    logger.info("Retention: removing raw reads in {}", hour);
+                    try (Stream<Path> walk = Files.walk(hour)) {
+                        for (Path f : walk.sorted(Comparator.reverseOrder()).toList()) {
+                            Files.delete(f);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Unable to prune the raw archive", ex);
+        }
+    }
+
+    /**
+     * Every archived read with an epochMilli between from and to (both
+     * exclusive) in time order. Reads from the last second or so may still be
+     * waiting to be written and won't show up yet.
+     */
+    public List<TagRead> getReads(long fromEpochMilli, long toEpochMilli) throws IOException {
+        List<TagRead> reads = new ArrayList<>();
+        forEach(fromEpochMilli, toEpochMilli, reads::add);
+        reads.sort(Comparator.comparingLong(TagRead::getEpochMilli));
+        return reads;
+    }
+
+    /**
+     * Stream every archived read with a local timestamp after from and before
+     * to (null for unbounded) in the order they were received.
+     */
+    public void forEach(LocalDateTime from, LocalDateTime to, Consumer<TagRead> consumer) throws IOException {
+        long fromMilli = from == null ? Long.MIN_VALUE : TagDB.fromEpochMilli(from);
+        long toMilli = to == null ? Long.MAX_VALUE : TagDB.toEpochMilli(to);
+        forEach(fromMilli, toMilli, r -> {
+            if ((from == null || from.isBefore(r.getTimestamp())) && (to == null || to.isAfter(r.getTimestamp()))) {
+                consumer.accept(r);
+            }
+        });
+    }
+
+    /**
+     * Every archived read with an epochMilli between from and to (both
+     * exclusive) in the order they were received.
+     */
+    public void forEach(long fromEpochMilli, long toEpochMilli, Consumer<TagRead> consumer) throws IOException {
+        if (!Files.isDirectory(rawPath)) {
+            return;
+        }
+        // Files are filed by when the read arrived, which can be a little
+        // after the read itself, so give each hour some slack.
+        ZoneId zoneId = ZoneId.systemDefault();
+        long slack = Duration.ofHours(1).toMillis();
+        for (Path hour : TagDBMaintenance.hourDirectories(rawPath)) {
+            long hourStart = TagDBMaintenance.hourOf(hour).atZone(zoneId).toInstant().toEpochMilli();
+            if (hourStart - slack >= toEpochMilli || hourStart + 2 * slack <= fromEpochMilli) {
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> l = Files.list(hour)) {
+                files = l.filter(f -> f.getFileName().toString().endsWith(RAW_SUFFIX)).sorted().toList();
+            }
+            for (Path f : files) {
+                readFile(f, fromEpochMilli, toEpochMilli, consumer);
+            }
+        }
+    }
+
+    private static void readFile(Path f, long from, long to, Consumer<TagRead> consumer) throws IOException {
+        Inflater inflater = new Inflater();
+        try (FileChannel in = FileChannel.open(f, StandardOpenOption.READ)) {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(in, header, 0)
+                    || !Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)
+                    || header.getInt(MAGIC.length) != VERSION) {
+                logger.warn("Skipping unknown raw archive file {}", f);
+                return;
+            }
+
+            long position = HEADER_SIZE;
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            while (position + BLOCK_HEADER_SIZE <= size) {
+                blockHeader.clear();
+                readFully(in, blockHeader, position);
+                int length = blockHeader.getInt(0);
+                int count = blockHeader.getInt(4);
+                long min = blockHeader.getLong(8);
+                long max = blockHeader.getLong(16);
+                int crc = blockHeader.getInt(24);
+                long next = position + BLOCK_HEADER_SIZE + length;
+                if (length <= 0 || next > size) {
+                    // torn write at the end of the file
+                    break;
+                }
+                if (max > from && min < to) {
+                    ByteBuffer data = ByteBuffer.allocate(length);
+                    readFully(in, data, position + BLOCK_HEADER_SIZE);
+                    data.flip();
+                    if (crc != TagReadCodec.crc(data)) {
+                        logger.warn("Skipping a corrupt raw archive block at offset {} in {}", position, f);
+                    } else {
+                        for (TagRead r : inflate(inflater, data, count)) {
+                            if (r.getEpochMilli() > from && r.getEpochMilli() < to) {
+                                consumer.accept(r);
+                            }
+                        }
+                    }
+                }
+                position = next;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static List<TagRead> inflate(Inflater inflater, ByteBuffer data, int count) throws IOException {
+        inflater.reset();
+        inflater.setInput(data);
+        // records are at least a few dozen bytes each, grow if needed
+        byte[] out = new byte[Math.max(1024, count * 48)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated raw archive block");
+                }
+                length += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt raw archive block", ex);
+        }
+        return TagDBCheckpoint.decodeChunk(ByteBuffer.wrap(out, 0, length));
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (in.read(b, position + b.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("enabled", enabled);
+        long queued = 0;
+        long dropped = droppedReads.get();
+        for (SpscRing<TagRead> ring : readerRings) {
+            if (ring != null) {
+                queued += ring.size();
+                dropped += ring.dropped();
+            }
+        }
+        status.put("queueDepth", queued);
+        status.put("archivedReads", archivedReads.get());
+        status.put("droppedReads", dropped);
+        status.put("blocks", blocks.get());
+        status.put("rawBytes", rawBytes.get());
+        status.put("compressedBytes", compressedBytes.get());
+        return status;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Rewind responses, already turned into JSON, an hour (UTC) at a time.
+ *
+ * Once an hour has closed its reads don't change, so there is no point in
+ * running them back through toJSONObject() every time a timing laptop asks
+ * for a rewind. Each closed hour is kept as the UTF-8 bytes of its reads
+ * joined with commas, ready to be dropped in between the brackets of a
+ * response. The cache is limited by the total size of the blocks and the
+ * least recently used hours go first.
+ *
+ * A late read for a closed hour drops that hour from the cache.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class RewindCache {
+
+    // what a block costs us on top of the JSON itself
+    private static final int BLOCK_OVERHEAD = 96;
+
+    private final long maxBytes;
+
+    /**
+     * The reads from one hour as JSON along with the first and last local
+     * timestamps in it, so the caller can tell if the whole block is in
+     * range.
+     */
+    record Block(byte[] json, int reads, LocalDateTime first, LocalDateTime last) {
+
+        boolean isEmpty() {
+            return reads == 0;
+        }
+
+        long size() {
+            return json.length + BLOCK_OVERHEAD;
+        }
+    }
+
+    private record Key(String session, long hour) {
+
+    }
+
+    // Guarded by this
+    private final Map<Key, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    RewindCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    static Block encode(Collection<TagRead> reads) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(reads.size() * 160);
+        LocalDateTime first = null;
+        LocalDateTime last = null;
+        for (TagRead r : reads) {
+            if (out.size() > 0) {
+                out.write(',');
+            }
+            out.writeBytes(r.toJSONObject().toString().getBytes(StandardCharsets.UTF_8));
+            if (first == null || r.getTimestamp().isBefore(first)) {
+                first = r.getTimestamp();
+            }
+            if (last == null || r.getTimestamp().isAfter(last)) {
+                last = r.getTimestamp();
+            }
+        }
+        return new Block(out.toByteArray(), reads.size(), first, last);
+    }
+
+    synchronized Block get(String session, long hour) {
+        Block b = blocks.get(new Key(session, hour));
+        if (b == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return b;
+    }
+
+    /**
+     * Bumped every time something is invalidated. Grab it before reading the
+     * reads for a block and hand it back to put().
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Save a block unless something was invalidated since the generation
+     * was read, in which case it may already be stale.
+     */
+    synchronized void put(String session, long hour, Block b, long generation) {
+        if (generation != this.generation || b.size() > maxBytes / 4) {
+            return;
+        }
+        Block old = blocks.put(new Key(session, hour), b);
+        bytes += b.size() - (old == null ? 0 : old.size());
+
+        Iterator<Block> i = blocks.values().iterator();
+        while (bytes > maxBytes && i.hasNext()) {
+            bytes -= i.next().size();
+            i.remove();
+        }
+    }
+
+    synchronized void invalidate(String session, long hour) {
+        generation++;
+        Block old = blocks.remove(new Key(session, hour));
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    /**
+     * Drop every hour that ends before the epochMilli, for retention.
+     */
+    synchronized void dropBefore(long epochMilli) {
+        generation++;
+        Iterator<Map.Entry<Key, Block>> i = blocks.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Block> e = i.next();
+            if (e.getKey().hour() + TagDBRollup.HOUR <= epochMilli) {
+                bytes -= e.getValue().size();
+                i.remove();
+            }
+        }
+    }
+
+    synchronized JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("rewindCacheHours", blocks.size());
+        status.put("rewindCacheBytes", bytes);
+        status.put("rewindCacheHits", hits);
+        status.put("rewindCacheMisses", misses);
+        return status;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sealed (compacted) hour of reads, sorted by epochMilli and accessed
+ * through a read only memory map so the OS page cache does the caching.
+ *
+ * The file is a normal binary data file with a sparse index and trailer
+ * tacked on the end:
+ *
+ * <pre>
+ *  header + frames   one frame of up to 1024 records per index entry
+ *  index    { epochMilli(long) offset(int) } for the start of each frame
+ *  trailer  indexOffset(long) indexCount(int) minEpochMilli(long) maxEpochMilli(long) "PKIX"
+ * </pre>
+ *
+ * A range lookup binary searches the index and then only decodes the
+ * frames that overlap the requested range. A frame that fails its checksum
+ * is skipped rather than taking the rest of the hour with it. Older sealed
+ * files with unframed records are still read.
+ *
+ * Sealed files are usually written with each frame deflated on its own (see
+ * TagReadCodec), so a lookup only inflates the frames it actually needs.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class SealedSegment {
+
+    private static final Logger logger = LoggerFactory.getLogger(SealedSegment.class);
+
+    private static final byte[] INDEX_MAGIC = "PKIX".getBytes(StandardCharsets.US_ASCII);
+    static final int TRAILER_SIZE = 8 + 4 + 8 + 8 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+    private static final int INDEX_INTERVAL = 1024;
+
+    private final Path path;
+    private final MappedByteBuffer map;
+    private final int dataLimit;
+    private final int indexOffset;
+    private final int indexCount;
+    private final long minEpochMilli;
+    private final long maxEpochMilli;
+
+    private SealedSegment(Path path, MappedByteBuffer map) {
+        this.path = path;
+        this.map = map;
+
+        int limit = dataLimit(map);
+        if (limit < map.limit()) {
+            int t = map.limit() - TRAILER_SIZE;
+            indexOffset = (int) map.getLong(t);
+            indexCount = map.getInt(t + 8);
+            minEpochMilli = map.getLong(t + 12);
+            maxEpochMilli = map.getLong(t + 20);
+        } else {
+            // a sealed file from before we started indexing them
+            indexOffset = limit;
+            indexCount = 0;
+            minEpochMilli = Long.MIN_VALUE;
+            maxEpochMilli = Long.MAX_VALUE;
+        }
+        dataLimit = limit;
+    }
+
+    static SealedSegment open(Path f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new SealedSegment(f, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Where the records end in a binary data file. For anything without a
+     * valid index trailer this is just the end of the buffer.
+     */
+    static int dataLimit(ByteBuffer b) {
+        int size = b.limit();
+        if (size < TagReadCodec.HEADER_SIZE + TRAILER_SIZE) {
+            return size;
+        }
+        return (int) dataLimit(b.slice(size - TRAILER_SIZE, TRAILER_SIZE), size);
+    }
+
+    /**
+     * Where the records end in a binary data file that is being read through
+     * a channel. Only the trailer is read.
+     */
+    static long dataLimit(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < TagReadCodec.HEADER_SIZE + TRAILER_SIZE) {
+            return size;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        while (trailer.hasRemaining()) {
+            if (channel.read(trailer, size - TRAILER_SIZE + trailer.position()) < 0) {
+                return size;
+            }
+        }
+        return dataLimit(trailer.flip(), size);
+    }
+
+    // trailer holds the last TRAILER_SIZE bytes of a file of the given size
+    private static long dataLimit(ByteBuffer trailer, long size) {
+        for (int i = 0; i < INDEX_MAGIC.length; i++) {
+            if (trailer.get(TRAILER_SIZE - INDEX_MAGIC.length + i) != INDEX_MAGIC[i]) {
+                return size;
+            }
+        }
+        long indexOffset = trailer.getLong(0);
+        int indexCount = trailer.getInt(8);
+        if (indexOffset < TagReadCodec.HEADER_SIZE || indexOffset + (long) indexCount * INDEX_ENTRY_SIZE != size - TRAILER_SIZE) {
+            return size;
+        }
+        return indexOffset;
+    }
+
+    /**
+     * Write a sorted list of reads out as a sealed file.
+     */
+    static void write(FileChannel out, List<TagRead> sortedReads, boolean compress) throws IOException {
+        ByteBuffer header = TagReadCodec.header(compress ? TagReadCodec.COMPRESSION_DEFLATE : TagReadCodec.COMPRESSION_NONE);
+        Deflater deflater = compress ? new Deflater() : null;
+        int position = header.remaining();
+        writeFully(out, header);
+
+        int indexCount = (sortedReads.size() + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        ByteBuffer index = ByteBuffer.allocate(indexCount * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+
+        for (int i = 0; i < sortedReads.size(); i += INDEX_INTERVAL) {
+            List<TagRead> block = sortedReads.subList(i, Math.min(sortedReads.size(), i + INDEX_INTERVAL));
+            ByteBuffer data = compress ? TagReadCodec.encodeFrame(block, deflater) : TagReadCodec.encodeFrame(block);
+            index.putLong(block.get(0).getEpochMilli()).putInt(position);
+            position += data.remaining();
+            writeFully(out, data);
+        }
+
+        index.putLong(position).putInt(indexCount);
+        index.putLong(sortedReads.isEmpty() ? 0 : sortedReads.get(0).getEpochMilli());
+        index.putLong(sortedReads.isEmpty() ? 0 : sortedReads.get(sortedReads.size() - 1).getEpochMilli());
+        index.put(INDEX_MAGIC);
+        writeFully(out, index.flip());
+
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * True if the frames in the file are deflated.
+     */
+    static boolean isCompressed(Path f) throws IOException {
+        try (FileChannel in = FileChannel.open(f, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(TagReadCodec.HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+            }
+            header.flip();
+            return TagReadCodec.hasHeader(header) && TagReadCodec.compression(header) == TagReadCodec.COMPRESSION_DEFLATE;
+        }
+    }
+
+    long getMinEpochMilli() {
+        return minEpochMilli;
+    }
+
+    long getMaxEpochMilli() {
+        return maxEpochMilli;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Decode just the reads with an epochMilli between from and to (both
+     * exclusive) in time order.
+     */
+    void forEach(long from, long to, Consumer<TagRead> consumer) {
+        if (from >= maxEpochMilli || to <= minEpochMilli) {
+            return;
+        }
+
+        ByteBuffer b = map.duplicate();
+        b.limit(dataLimit);
+        b.position(seek(from));
+
+        if (TagReadCodec.version(map) == TagReadCodec.VERSION_UNFRAMED) {
+            decode(b, from, to, consumer);
+            return;
+        }
+        boolean deflated = TagReadCodec.compression(map) == TagReadCodec.COMPRESSION_DEFLATE;
+
+        while (b.remaining() >= TagReadCodec.FRAME_HEADER_SIZE) {
+            int start = b.position();
+            int length = b.getInt(start);
+            if (length <= 0 || length > b.remaining() - TagReadCodec.FRAME_HEADER_SIZE) {
+                logger.error("Bad frame length at offset {} in {}", start, path);
+                return;
+            }
+            ByteBuffer records = b.slice(start + TagReadCodec.FRAME_HEADER_SIZE, length);
+            b.position(start + TagReadCodec.FRAME_HEADER_SIZE + length);
+            if (b.getInt(start + 4) != TagReadCodec.crc(records)) {
+                logger.error("Skipping a corrupt frame at offset {} in {}", start, path);
+                continue;
+            }
+            try {
+                if (!decode(deflated ? TagReadCodec.inflate(records) : records, from, to, consumer)) {
+                    return;
+                }
+            } catch (IllegalArgumentException ex) {
+                logger.error("Skipping an unreadable frame at offset {} in {}", start, path, ex);
+            }
+        }
+    }
+
+    // false once we are past the end of the range
+    private boolean decode(ByteBuffer b, long from, long to, Consumer<TagRead> consumer) {
+        while (b.hasRemaining()) {
+            TagRead r = TagReadCodec.decode(b);
+            if (r == null) {
+                break;
+            }
+            if (r.getEpochMilli() >= to) {
+                return false;
+            }
+            if (r.getEpochMilli() > from) {
+                consumer.accept(r);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Offset of the last indexed block that starts at or before the epochMilli
+     */
+    private int seek(long epochMilli) {
+        int lo = 0;
+        int hi = indexCount - 1;
+        int offset = TagReadCodec.HEADER_SIZE;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = indexOffset + mid * INDEX_ENTRY_SIZE;
+            if (map.getLong(entry) < epochMilli) {
+                offset = map.getInt(entry + 8);
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return offset;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of tag read batches between two pipeline stages that never throws on
+ * the producer side.
+ *
+ * Batches go into a bounded in-memory queue. Once that fills up (say the DB
+ * thread is stuck on a slow SD card) new batches are appended to a spill file
+ * instead and the consumer works through the file after it empties the
+ * in-memory queue, so batches always come out in the order they went in.
+ *
+ * The spill file starts with a small header holding how far the consumer has
+ * got, followed by the batches. Each spilled batch is a read count and byte
+ * count followed by the reads in the binary TagReadCodec format and is
+ * forced to disk before add() returns. The consumer calls commit() once it
+ * has safely dealt with everything it has taken so far (e.g. the journal
+ * commit went through), which saves its position in the header. A consumer
+ * that hands batches on to somewhere that is only durable later can take a
+ * mark() after each batch and commit(mark) once that batch is safe. A spill file
+ * left over from a crash is picked up from that point on startup so those
+ * reads are neither lost nor handed out twice. Once everything in the file
+ * has been committed it is truncated and we go back to memory only.
+ *
+ * <pre>
+ *  "PKSQ" committed position(long)
+ *  { reads(int) bytes(int) records... }
+ * </pre>
+ *
+ * If the spill file can't be written the producer waits for the consumer to
+ * finish with the file and then for room in the in-memory queue, so the
+ * order is kept even then.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class SpillQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    static final String SPILL_SUFFIX = ".spill";
+    private static final byte[] MAGIC = "PKSQ".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int BATCH_HEADER_SIZE = 4 + 4;
+
+    private final String name;
+    private final Path spillPath;
+    private final BlockingQueue<Collection<TagRead>> memory;
+
+    // Guarded by this
+    private FileChannel spill;
+    private long spillWritePosition = HEADER_SIZE;
+    private long spillReadPosition = HEADER_SIZE;
+    private long spillCommitPosition = HEADER_SIZE;
+    private int spilledBatches = 0;
+    private int spilledReads = 0;
+    private boolean spillFailing = false;
+    // what a reset has taken off the front of the file, so marks from before
+    // it stay in order with the ones after
+    private long spillBase = 0;
+    private long addedBatches = 0;
+
+    // Only written by the consumer
+    private volatile long takenBatches = 0;
+
+    private final AtomicLong totalSpilledBatches = new AtomicLong();
+    private final AtomicLong totalSpilledReads = new AtomicLong();
+    private volatile long maxSpillBytes = 0;
+
+    SpillQueue(String name, Path spillPath, int capacity) {
+        this.name = name;
+        this.spillPath = spillPath;
+        this.memory = new ArrayBlockingQueue<>(capacity);
+
+        try {
+            if (Files.exists(spillPath) && Files.size(spillPath) > HEADER_SIZE) {
+                openSpill();
+                spillWritePosition = spill.size();
+                countLeftovers();
+                addedBatches = spilledBatches;
+                logger.warn("Found {} reads left in the {} spill file, they will be processed first", spilledReads, name);
+            } else {
+                Files.deleteIfExists(spillPath);
+            }
+        } catch (IOException ex) {
+            // keep it around for somebody to look at and start over
+            Path bad = spillPath.resolveSibling(spillPath.getFileName() + ".bad");
+            logger.error("Unable to read the {} spill file {}, moving it to {}", name, spillPath, bad, ex);
+            spilledBatches = 0;
+            spilledReads = 0;
+            spillReadPosition = spillWritePosition = spillCommitPosition = HEADER_SIZE;
+            try {
+                if (spill != null) {
+                    spill.close();
+                }
+                Files.move(spillPath, bad, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.error("Unable to move {} out of the way", spillPath, e);
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * Add a batch to the end of the queue.
+     *
+     * @return the number of batches added so far, this one included, which
+     * is also this batch's place in line (see taken())
+     */
+    long add(Collection<TagRead> reads) {
+        synchronized (this) {
+            while (true) {
+                // Once we start spilling everything goes to the file until the
+                // consumer catches up, otherwise we would get things out of order
+                if (spilledBatches == 0 && memory.offer(reads)) {
+                    return ++addedBatches;
+                }
+                try {
+                    spill(reads);
+                    if (spillFailing) {
+                        logger.info("Spilling to {} is working again", spillPath);
+                        spillFailing = false;
+                    }
+                    return ++addedBatches;
+                } catch (IOException ex) {
+                    if (!spillFailing) {
+                        logger.error("Unable to spill {} reads to {}", reads.size(), spillPath, ex);
+                        spillFailing = true;
+                    }
+                }
+
+                // No disk to spill to, the best we can do is wait for the
+                // consumer to get through the file and then for room
+                try {
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    logger.error("Interrupted while waiting to queue {} reads", reads.size());
+                    Thread.currentThread().interrupt();
+                    // never queued, so it is only as far along as the one before
+                    return addedBatches;
+                }
+            }
+        }
+    }
+
+    /**
+     * The next batch, waiting up to the timeout if there isn't one.
+     */
+    Collection<TagRead> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Collection<TagRead> reads = memory.poll();
+        if (reads != null) {
+            takenBatches++;
+            return reads;
+        }
+        synchronized (this) {
+            if (spilledBatches > 0) {
+                return unspill();
+            }
+        }
+        // Nothing is spilled, and nothing will be until the memory queue
+        // fills up, so it is safe to just wait on that.
+        reads = memory.poll(timeout, unit);
+        if (reads != null) {
+            takenBatches++;
+        }
+        return reads;
+    }
+
+    /**
+     * How many batches have been taken from the queue (or lost on the way
+     * out), so batch number n from add() has been taken once this is at
+     * least n. Only meaningful to the consumer.
+     */
+    long taken() {
+        return takenBatches;
+    }
+
+    /**
+     * Where the consumer is right now, to commit(mark) later on once
+     * everything taken so far is safe. Consumer side only.
+     */
+    synchronized long mark() {
+        return spillBase + spillReadPosition;
+    }
+
+    /**
+     * Everything taken from the queue so far has been dealt with and does not
+     * need to be handed out again after a crash.
+     */
+    synchronized void commit() {
+        commit(mark());
+    }
+
+    /**
+     * Everything taken from the queue up to the mark has been dealt with and
+     * does not need to be handed out again after a crash.
+     */
+    synchronized void commit(long mark) {
+        long position = Math.min(mark - spillBase, spillReadPosition);
+        if (spill == null || position <= spillCommitPosition) {
+            return;
+        }
+        try {
+            if (spilledBatches == 0 && position == spillReadPosition) {
+                resetSpill();
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(8).putLong(position).flip();
+            while (header.hasRemaining()) {
+                spill.write(header, MAGIC.length + header.position());
+            }
+            spill.force(false);
+            spillCommitPosition = position;
+        } catch (IOException ex) {
+            // the batches may be handed out again after a restart
+            logger.warn("Unable to save the {} spill file position", name, ex);
+        }
+    }
+
+    private void spill(Collection<TagRead> reads) throws IOException {
+        if (spill == null) {
+            openSpill();
+            logger.warn("The {} queue is full, spilling reads to {}", name, spillPath);
+        }
+
+        ByteBuffer data = TagReadCodec.encode(reads);
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE).putInt(reads.size()).putInt(data.remaining()).flip();
+        long position = spillWritePosition;
+        for (ByteBuffer b : List.of(header, data)) {
+            while (b.hasRemaining()) {
+                position += spill.write(b, position);
+            }
+        }
+        spill.force(false);
+        spillWritePosition = position;
+
+        spilledBatches++;
+        spilledReads += reads.size();
+        totalSpilledBatches.incrementAndGet();
+        totalSpilledReads.addAndGet(reads.size());
+        maxSpillBytes = Math.max(maxSpillBytes, spillWritePosition);
+    }
+
+    private Collection<TagRead> unspill() {
+        try {
+            ByteBuffer header = readFully(spillReadPosition, BATCH_HEADER_SIZE);
+            int count = header.getInt();
+            ByteBuffer data = readFully(spillReadPosition + BATCH_HEADER_SIZE, header.getInt());
+            spillReadPosition += BATCH_HEADER_SIZE + data.limit();
+
+            List<TagRead> reads = TagDBCheckpoint.decodeChunk(data);
+            if (reads.size() != count) {
+                logger.warn("Expected {} reads in a spilled batch but found {}", count, reads.size());
+            }
+            spilledBatches--;
+            spilledReads -= count;
+            takenBatches++;
+            if (spilledBatches == 0) {
+                logger.info("The {} queue has caught up with the spill file", name);
+            }
+            return reads;
+        } catch (IOException ex) {
+            // Whatever is left in the file is unreadable, don't get stuck on it
+            logger.error("Unable to read back spilled reads from {}, {} reads lost", spillPath, spilledReads, ex);
+            takenBatches += spilledBatches;
+            spilledBatches = 0;
+            spilledReads = 0;
+            spillReadPosition = spillWritePosition;
+            return null;
+        }
+    }
+
+    private void openSpill() throws IOException {
+        Files.createDirectories(spillPath.getParent());
+        spill = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (spill.size() < HEADER_SIZE) {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putLong(HEADER_SIZE).flip();
+        while (header.hasRemaining()) {
+            spill.write(header, header.position());
+        }
+        spill.force(false);
+    }
+
+    // Everything in the file has been committed, start over
+    private void resetSpill() throws IOException {
+        long consumed = spillReadPosition - HEADER_SIZE;
+        spill.truncate(HEADER_SIZE);
+        writeHeader();
+        spillBase += consumed;
+        spillReadPosition = HEADER_SIZE;
+        spillWritePosition = HEADER_SIZE;
+        spillCommitPosition = HEADER_SIZE;
+    }
+
+    // Walk a leftover file from the committed position on to see how many
+    // complete batches it still holds
+    private void countLeftovers() throws IOException {
+        ByteBuffer fileHeader = readFully(0, HEADER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        fileHeader.get(magic);
+        long position = fileHeader.getLong();
+        if (!Arrays.equals(magic, MAGIC) || position < HEADER_SIZE || position > spillWritePosition) {
+            throw new IOException("Unknown spill file format in " + spillPath);
+        }
+        spillReadPosition = position;
+        spillCommitPosition = position;
+
+        while (position + BATCH_HEADER_SIZE <= spillWritePosition) {
+            ByteBuffer header = readFully(position, BATCH_HEADER_SIZE);
+            int count = header.getInt();
+            long next = position + BATCH_HEADER_SIZE + header.getInt();
+            if (next > spillWritePosition) {
+                break;
+            }
+            spilledBatches++;
+            spilledReads += count;
+            position = next;
+        }
+        // drop a torn batch from the end
+        spillWritePosition = position;
+        spill.truncate(position);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (spill.read(b, position + b.position()) < 0) {
+                throw new IOException("Unexpected end of spill file " + spillPath);
+            }
+        }
+        return b.flip();
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        synchronized (this) {
+            status.put("queueDepth", memory.size() + spilledBatches);
+            status.put("queueSpilledBatches", spilledBatches);
+            status.put("queueSpilledReads", spilledReads);
+            status.put("queueSpillBytes", spillWritePosition - spillReadPosition);
+        }
+        status.put("queueTotalSpilledBatches", totalSpilledBatches.get());
+        status.put("queueTotalSpilledReads", totalSpilledReads.get());
+        status.put("queueMaxSpillBytes", maxSpillBytes);
+        return status;
+    }
+}
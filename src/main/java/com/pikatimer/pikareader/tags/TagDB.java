@@ -17,22 +17,29 @@
 package com.pikatimer.pikareader.tags;
 
 import com.pikatimer.pikareader.conf.PikaConfig;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.stream.Stream;
-import org.json.JSONException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,13 +50,52 @@ import org.slf4j.LoggerFactory;
  */
 public class TagDB {
 
-    private static final BlockingQueue<Collection<TagRead>> tagQueue = new ArrayBlockingQueue<>(100);
     private static final Logger logger = LoggerFactory.getLogger(TagDB.class);
     private static final PikaConfig pikaConfig = PikaConfig.getInstance();
     private final JSONObject dbConfig;
-    private static final List<TagRead> tagList = new ArrayList<>();
+    private final Path dbPath;
+    private final SpillQueue tagQueue;
+    // Every batch added up to this one has been committed to the journal
+    private volatile long durableBatches = 0;
+    private final TagSequence sequence;
+    private final TagDBMaintenance maintenance;
+    private final Duration hotWindow;
+    private final Long hotMaxReads;
+    private final Integer cacheHours;
+    private final Duration checkpointInterval;
+    private volatile Boolean checkpointRequested = false;
 
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH/HH-mm-ss.SSS'.dat'");
+    private final Long segmentBytes;
+    private final Boolean binary;
+    private final TagJournal.Durability durability;
+    private final Long commitInterval;
+    private final Integer commitBytes;
+
+    // The current session and its journal. Both are only swapped out by 
+    // the TagDBThread.
+    private volatile TagDBSession session;
+    private volatile TagJournal journal;
+
+    private record SessionSwitch(String name, CompletableFuture<String> done) {
+
+    }
+    private final Queue<SessionSwitch> sessionSwitches = new ConcurrentLinkedQueue<>();
+
+    // Never evict anything this new, it may not have hit the disk yet
+    private static final Duration minHotWindow = Duration.ofMinutes(10);
+
+    private static final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TagDBMaintenanceThread");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Reads added since startup, loaded or new
+    private final AtomicLong indexedReads = new AtomicLong();
+
+    // Closed hours already turned into JSON for rewinds
+    private final RewindCache rewindCache;
 
     /**
      * SingletonHolder is loaded on the first execution of
@@ -74,12 +120,26 @@ public class TagDB {
         // if we have an empty config, build out the defaults
         if (dbConfig.isEmpty()) {
             dbConfig.put("Path", System.getProperty("DB", System.getProperty("user.home") + "/.PikaReader")); // Default Gating of 3 seconds
+            dbConfig.put("Session", TagDBSession.DEFAULT_SESSION);
             dbConfig.put("Retention", 180); // 180 days
+            dbConfig.put("Segment Size", 64); // 64MB journal segments
+            dbConfig.put("Format", "Binary"); // Binary or JSON
+            dbConfig.put("Durability", "Group"); // None, Group, or Batch
+            dbConfig.put("Commit Interval", 500); // milliseconds
+            dbConfig.put("Commit Size", 1024); // KB
+            dbConfig.put("Checkpoint Interval", 5); // minutes, 0 to disable
+            dbConfig.put("Hot Window Hours", 24); // 0 to keep everything in memory
+            dbConfig.put("Hot Window Max Reads", 2000000); // 0 for no limit
+            dbConfig.put("Cold Cache Hours", 8);
+            dbConfig.put("Compress Sealed", true); // deflate closed hours
+            dbConfig.put("Raw Archive", false); // keep every read from before gating
+            dbConfig.put("Raw Archive Retention", 30); // days
+            dbConfig.put("Rewind Cache", 64); // MB, 0 to disable
 
             pikaConfig.putObject("DB", dbConfig);
         }
 
-        Path dbPath = Path.of(dbConfig.getString("Path"));
+        dbPath = Path.of(dbConfig.getString("Path"));
 
         try {
             Files.createDirectories(dbPath);
@@ -87,63 +147,124 @@ public class TagDB {
             logger.error("Unable to create database directory {}", dbPath.toAbsolutePath());
         }
 
+        // Every read gets a durable sequence number so clients can sync up
+        // with /reads?after= rather than by time
+        sequence = new TagSequence(dbPath);
+
+        // If we fall behind the extra batches are spilled to disk rather 
+        // than pushing back on the router
+        tagQueue = new SpillQueue("TagDB", dbPath.resolve("db" + SpillQueue.SPILL_SUFFIX), 100);
+
+        // Only the last few hours of reads are kept in memory, anything older
+        // is read back from disk with a small cache of recently used hours
+        hotWindow = Duration.ofHours(dbConfig.optInt("Hot Window Hours", 24));
+        hotMaxReads = dbConfig.optLong("Hot Window Max Reads", 2000000);
+        cacheHours = dbConfig.optInt("Cold Cache Hours", 8);
+
+        // Repeat rewinds of closed hours skip the JSON encoding
+        rewindCache = new RewindCache(dbConfig.optInt("Rewind Cache", 64) * 1024L * 1024L);
+
+        // Checkpoints let a restart skip re-reading everything on disk
+        checkpointInterval = Duration.ofMinutes(dbConfig.optInt("Checkpoint Interval", 5));
+
+        // Journal segments roll over every hour or when they hit the max size
+        // The JSON format is kept around for anybody who wants to grep the raw files
+        segmentBytes = dbConfig.optInt("Segment Size", 64) * 1024L * 1024L;
+        binary = !"JSON".equalsIgnoreCase(dbConfig.optString("Format", "Binary"));
+        // Batches are grouped up and committed together. The durability mode 
+        // trades throughput for how much can be lost if the power is pulled.
+        durability = TagJournal.Durability.of(dbConfig.optString("Durability", "Group"));
+        commitInterval = dbConfig.optLong("Commit Interval", 500);
+        commitBytes = dbConfig.optInt("Commit Size", 1024) * 1024;
+
+        String sessionName = dbConfig.optString("Session", TagDBSession.DEFAULT_SESSION);
+        if (!TagDBSession.isValidName(sessionName)) {
+            logger.error("Invalid DB session name '{}', using the default session", sessionName);
+            sessionName = TagDBSession.DEFAULT_SESSION;
+        }
+        session = new TagDBSession(dbPath, sessionName, cacheHours);
+        journal = newJournal(session);
+
+        // Retention and compaction run in the background at a low priority
+        maintenance = new TagDBMaintenance(dbPath, dbConfig.optInt("Retention", 180), dbConfig.optBoolean("Compress Sealed", true), () -> journal.getSegmentPath(),
+                epochMilli -> {
+                    session.evictBefore(epochMilli);
+                    rewindCache.dropBefore(epochMilli);
+                }, () -> checkpointRequested = true);
+
         Thread t = new Thread(() -> {
 
-            Instant start = Instant.now();
-            try (Stream<Path> walk = Files.walk(dbPath)) {
-                walk.parallel().filter(Files::isRegularFile).forEach(f -> {
-                    try {
-                        Files.lines(f).forEach(s -> {
-                            try {
-                                tagList.add(new TagRead(new JSONObject(s)));
-                            } catch (JSONException ex) {
-                                logger.error("Error parsing {} in file at {}", s, f.toAbsolutePath().toString());
-                            }
-                        });
-                    } catch (Exception ex) {
-                        logger.error("Error reading file at {}", f.toAbsolutePath().toString(), ex);
-                    }
-                });
-            } catch (IOException ex) {
-                logger.error("Error reading DB at {}", dbPath.toAbsolutePath().toString(), ex);
-            }
-            Instant end = Instant.now();
-            Duration elapsed = Duration.between(start, end);
-            logger.info("Loaded TagDB in {}ms with {} existing reads", elapsed.toMillis(), tagList.size());
-
-            // Setup loop to add new tag reads to a new file as they come in. 
-            // To save on IO and more importantly, survive a sudden filesystem shutdown when the 
-            // user pulls the power, each cycle will dump all of the tags into a single file. 
-            // generally speaking, this will produce no more than 1 file per gating perod. 
+            // Load everything in the hot window we already have on disk before 
+            // we start taking new reads so the sequence numbers are stable.
+            load(session);
+            logger.info("Loaded TagDB session {} with {} existing reads", session.getName(), indexedReads.get());
+
+            maintenanceExecutor.scheduleWithFixedDelay(maintenance, 5, 15, TimeUnit.MINUTES);
+
+            // Setup loop to append new tag reads to the journal as they come in. 
+            // Batches are grouped up and each group is appended to the current 
+            // segment in one write so that a sudden shutdown when the user 
+            // pulls the power will at most lose the group in flight. The 
+            // segment rolls over each hour or once it hits the max segment 
+            // size so we end up with a handful of large files rather than 
+            // one per gating period. 
+            Instant lastCheckpoint = Instant.now();
             try {
                 while (true) {
-                    Collection<TagRead> tr = tagQueue.take();
+                    // wake up in time to commit the current group
+                    Collection<TagRead> tr = tagQueue.poll(journal.nanosUntilCommit(TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
 
-                    // Add all of the tags to our list
-                    tagList.addAll(tr);
+                    if (tr != null) {
+                        // Add all of the tags to our list
+                        TagDBSession s = session;
+                        tr.forEach(r -> index(s, r));
 
-                    StringBuilder data = new StringBuilder();
-                    tr.forEach(read -> {
-                        data.append(read.toJSON()).append(System.lineSeparator());
-                    });
+                        try {
+                            journal.append(tr);
+                        } catch (IOException ex) {
+                            journalError(ex);
+                        }
+                    }
 
-                    // target file of <dbbapth>/YYYY/MM/DD/HH/HH-MM-ss.SSS.dat 
-                    File outputFile = new File(dbPath.toString() + LocalDateTime.now().format(formatter));
+                    if (journal.isCommitDue()) {
+                        commitJournal();
+                    }
+                    // Anything the journal has written doesn't need to come
+                    // back out of the spill file after a crash, and a rollup
+                    // rebuilt off of the disk will see it
+                    if (journal.isCommitted()) {
+                        tagQueue.commit();
+                        durableBatches = tagQueue.taken();
+                        session.rollup.journaled();
+                    }
 
-                    logger.debug("Writing to data to {}", outputFile.getAbsolutePath());
+                    session.evict(hotWindow, hotMaxReads, minHotWindow);
 
-                    // Make the parent path
-                    outputFile.getParentFile().mkdirs();
+                    // The capture has to happen here, between batches, so the
+                    // file manifest matches what is in memory. The heavy
+                    // lifting of writing it out is left to the maintenance thread.
+                    if (!checkpointInterval.isZero() && (checkpointRequested || Duration.between(lastCheckpoint, Instant.now()).compareTo(checkpointInterval) > 0)) {
+                        checkpointRequested = false;
+                        lastCheckpoint = Instant.now();
+                        checkpoint();
+                    }
 
-                    try (FileWriter output = new FileWriter(outputFile);) {
-                        output.write(data.toString());
-                    } catch (IOException ex) {
-                        logger.error("Error writing to {}", outputFile.getAbsolutePath(), ex);
+                    SessionSwitch next;
+                    while ((next = sessionSwitches.peek()) != null && switchSession(next)) {
+                        sessionSwitches.poll();
+                        lastCheckpoint = Instant.now();
                     }
                 }
             } catch (InterruptedException ex) {
             }
 
+            commitJournal();
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                logger.error("Error closing journal segment {}", journal.getSegmentPath(), ex);
+            }
+
             logger.info("Exiting TagDBThread");
         });
 
@@ -154,13 +275,471 @@ public class TagDB {
         logger.info("TagDB Processing Thread started.");
     }
 
+    private TagJournal newJournal(TagDBSession s) {
+        return new TagJournal(s.getPath(), segmentBytes, binary, durability, commitInterval, commitBytes);
+    }
+
+    private void load(TagDBSession s) {
+        if (!hotWindow.isZero()) {
+            s.setHotCutoff(Instant.now().minus(hotWindow).toEpochMilli());
+        }
+        // Anything evicted before the checkpoint was taken is not in it and
+        // its files won't be replayed, so it has to keep coming from disk.
+        TagDBCheckpoint.Snapshot snapshot = s.checkpoint.load();
+        if (snapshot != null) {
+            s.evictBefore(snapshot.hotCutoff());
+        }
+        long last = sequence.last();
+        s.rollup.load(s.getHotCutoff());
+        s.recovery.run(snapshot, r -> {
+            // keep the number it was saved with
+            sequence.observe(r.dbSequence);
+            indexedReads.incrementAndGet();
+            s.index(r);
+        }, s.getHotCutoff());
+        s.rollup.loaded();
+        s.evict(hotWindow, hotMaxReads, minHotWindow);
+        s.loaded(last);
+    }
+
+    private void checkpoint() {
+        commitJournal();
+        // Reads that are only in memory would end up in the checkpoint and
+        // then again in the journal once the retry goes through
+        if (!journal.isHealthy()) {
+            logger.warn("Skipping checkpoint until the journal can be written");
+            return;
+        }
+        TagDBSession s = session;
+        try {
+            TagDBCheckpoint.Capture c = s.checkpoint.capture(s.getHotCutoff(), s.hotSnapshot());
+            maintenanceExecutor.execute(() -> s.checkpoint.write(c));
+        } catch (IOException ex) {
+            logger.error("Unable to capture checkpoint", ex);
+        }
+    }
+
+    /**
+     * Close out the current session and make the requested one current. The
+     * new session's hot window is loaded before it is swapped in so queries
+     * never see a half loaded session. Runs on the TagDBThread.
+     *
+     * @return false if the journal for the current session can't be written
+     * right now, in which case the switch has to be tried again later
+     */
+    private boolean switchSession(SessionSwitch request) {
+        if (request.name().equals(session.getName())) {
+            request.done().complete(request.name());
+            return true;
+        }
+        // the main loop keeps retrying the commit
+        if (!journal.isHealthy()) {
+            return false;
+        }
+        logger.info("Switching TagDB session from {} to {}", session.getName(), request.name());
+
+        if (!checkpointInterval.isZero()) {
+            checkpoint();
+        }
+        commitJournal();
+        // Don't walk away from reads that haven't been written yet
+        if (!journal.isHealthy()) {
+            logger.warn("Holding off on switching to session {} until the journal can be written", request.name());
+            return false;
+        }
+        session.rollup.journaled();
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            logger.error("Error closing journal segment {}", journal.getSegmentPath(), ex);
+        }
+
+        TagDBSession next = new TagDBSession(dbPath, request.name(), cacheHours);
+        try {
+            Files.createDirectories(next.getPath());
+        } catch (IOException ex) {
+            logger.error("Unable to create session directory {}", next.getPath().toAbsolutePath());
+        }
+        load(next);
+        journal = newJournal(next);
+        session = next;
+
+        dbConfig.put("Session", next.getName());
+        pikaConfig.putObject("DB", dbConfig);
+
+        logger.info("Now using TagDB session {}", next.getName());
+        request.done().complete(next.getName());
+        return true;
+    }
+
+    private void commitJournal() {
+        try {
+            journal.commit();
+        } catch (IOException ex) {
+            journalError(ex);
+        }
+    }
+
+    private void journalError(IOException ex) {
+        logger.error("Error writing to journal segment {}", journal.getSegmentPath(), ex);
+
+        // force a new segment on the next pass
+        try {
+            journal.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void index(TagDBSession s, TagRead r) {
+        r.dbSequence = sequence.next();
+        indexedReads.incrementAndGet();
+        s.index(r);
+
+        // a late read for an hour that may already be cached
+        if (r.getEpochMilli() < TagDBRollup.closedBefore(System.currentTimeMillis())) {
+            rewindCache.invalidate(s.getName(), TagDBRollup.hourOf(r.getEpochMilli()));
+        }
+    }
+
+    /**
+     * The name of the session new reads are going to.
+     */
+    public String getSession() {
+        return session.getName();
+    }
+
+    /**
+     * Every session on disk, the default session first.
+     */
+    public List<String> getSessions() throws IOException {
+        List<String> sessions = new ArrayList<>(TagDBSession.list(dbPath));
+        if (!sessions.contains(session.getName())) {
+            sessions.add(session.getName());
+        }
+        return sessions;
+    }
+
+    /**
+     * Start sending new reads to the named session, creating it if needed.
+     * Reads already queued up for the DB may land in either session.
+     *
+     * @return completes with the session name once the switch is done
+     */
+    public CompletableFuture<String> setSession(String name) {
+        if (!TagDBSession.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid session name: " + name);
+        }
+        CompletableFuture<String> done = new CompletableFuture<>();
+        sessionSwitches.add(new SessionSwitch(name, done));
+        return done;
+    }
+
+    // null means the current session
+    private TagDBSession session(String name) {
+        TagDBSession s = session;
+        if (name == null || name.equals(s.getName())) {
+            return s;
+        }
+        if (!TagDBSession.isValidName(name) || !Files.isDirectory(TagDBSession.pathOf(dbPath, name))) {
+            throw new IllegalArgumentException("Unknown session: " + name);
+        }
+        // Nothing from another session is in memory, so read it all from disk
+        TagDBSession other = new TagDBSession(dbPath, name, 0);
+        other.setHotCutoff(Long.MAX_VALUE);
+        return other;
+    }
+
+    /**
+     * All reads in the current session in time order.
+     */
     public Collection<TagRead> getReads() {
-        return new ArrayList<>(tagList);
+        return getReads(null, Long.MIN_VALUE, Long.MAX_VALUE);
     }
 
-    public void addReads(Collection<TagRead> reads) {
-        tagQueue.add(reads);
+    /**
+     * Reads in the current session with an epochMilli between from and to
+     * (both exclusive) in time order.
+     */
+    public Collection<TagRead> getReads(long fromEpochMilli, long toEpochMilli) {
+        return getReads(null, fromEpochMilli, toEpochMilli);
+    }
+
+    /**
+     * Reads in the named session (null for the current one) with an
+     * epochMilli between from and to (both exclusive) in time order. Reads in
+     * the hot window come straight out of memory, anything older is read back
+     * from disk.
+     */
+    public Collection<TagRead> getReads(String sessionName, long fromEpochMilli, long toEpochMilli) {
+        return session(sessionName).getReads(fromEpochMilli, toEpochMilli);
+    }
+
+    /**
+     * Reads in the current session with a local timestamp after from and
+     * before to.
+     */
+    public Collection<TagRead> getReads(LocalDateTime from, LocalDateTime to) {
+        return getReads(null, from, to);
+    }
+
+    /**
+     * Reads in the current session with a local timestamp after from.
+     */
+    public Collection<TagRead> getReads(LocalDateTime from) {
+        return getReads(null, from, null);
+    }
+
+    /**
+     * Reads in the named session (null for the current one) with a local
+     * timestamp after from and before to. A null from or to is unbounded.
+     */
+    public Collection<TagRead> getReads(String sessionName, LocalDateTime from, LocalDateTime to) {
+        long fromMilli = from == null ? Long.MIN_VALUE : fromEpochMilli(from);
+        long toMilli = to == null ? Long.MAX_VALUE : toEpochMilli(to);
+        return getReads(sessionName, fromMilli, toMilli).stream()
+                .filter(r -> (from == null || from.isBefore(r.getTimestamp())) && (to == null || to.isAfter(r.getTimestamp())))
+                .toList();
+    }
+
+    /**
+     * The same reads as getReads(sessionName, from, to) as a JSON array ready
+     * to send. Every closed hour that is entirely in the range comes out of
+     * the rewind cache as is, only the ends of the range and hours that are
+     * still open are encoded on the fly.
+     */
+    public byte[] getReadsJSON(String sessionName, LocalDateTime from, LocalDateTime to) {
+        TagDBSession s = session(sessionName);
+        long fromMilli = from == null ? Long.MIN_VALUE : fromEpochMilli(from);
+        long toMilli = to == null ? Long.MAX_VALUE : toEpochMilli(to);
+
+        // The closed hours entirely in the range, [first, end)
+        long end = Math.min(TagDBRollup.hourOf(toMilli), TagDBRollup.closedBefore(System.currentTimeMillis()));
+        long first = from == null ? firstHour(s, end) : TagDBRollup.hourOf(fromMilli) + TagDBRollup.HOUR;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('[');
+        if (!rewindCache.isEnabled() || first >= end) {
+            appendJSON(out, RewindCache.encode(getReads(sessionName, from, to)));
+            out.write(']');
+            return out.toByteArray();
+        }
+
+        appendJSON(out, RewindCache.encode(filter(s.getReads(fromMilli, first), from, to)));
+        long hour = first;
+        while (hour < end) {
+            RewindCache.Block b = rewindCache.get(s.getName(), hour);
+            if (b != null) {
+                appendJSON(out, b, s, hour, from, to);
+                hour += TagDBRollup.HOUR;
+                continue;
+            }
+
+            // Read the whole run of missing hours (up to a day) in one go
+            long runEnd = hour + TagDBRollup.HOUR;
+            while (runEnd < end && runEnd - hour < Duration.ofDays(1).toMillis() && rewindCache.get(s.getName(), runEnd) == null) {
+                runEnd += TagDBRollup.HOUR;
+            }
+            long generation = rewindCache.generation();
+            Map<Long, List<TagRead>> hours = new HashMap<>();
+            s.getReads(hour - 1, runEnd).forEach(r -> hours.computeIfAbsent(TagDBRollup.hourOf(r.getEpochMilli()), k -> new ArrayList<>()).add(r));
+            for (; hour < runEnd; hour += TagDBRollup.HOUR) {
+                b = RewindCache.encode(hours.getOrDefault(hour, Collections.emptyList()));
+                rewindCache.put(s.getName(), hour, b, generation);
+                appendJSON(out, b, s, hour, from, to);
+            }
+        }
+        appendJSON(out, RewindCache.encode(filter(s.getReads(end - 1, toMilli), from, to)));
+
+        out.write(']');
+        return out.toByteArray();
+    }
+
+    // With no start time the cached hours start with the oldest hour on disk
+    private static long firstHour(TagDBSession s, long end) {
+        try {
+            List<Path> hours = TagDBMaintenance.hourDirectories(s.getPath());
+            if (hours.isEmpty()) {
+                return end;
+            }
+            // the oldest directory can have reads from up to the lag before it
+            long oldest = fromEpochMilli(TagDBMaintenance.hourOf(hours.get(0))) + 1;
+            return TagDBRollup.hourOf(oldest - TagDBDiskStore.writeLag.toMillis());
+        } catch (IOException ex) {
+            logger.error("Unable to list {}", s.getPath(), ex);
+            return end;
+        }
+    }
+
+    private static Collection<TagRead> filter(Collection<TagRead> reads, LocalDateTime from, LocalDateTime to) {
+        return reads.stream()
+                .filter(r -> (from == null || from.isBefore(r.getTimestamp())) && (to == null || to.isAfter(r.getTimestamp())))
+                .toList();
+    }
+
+    // A block with a local time outside of the range (a reader in another
+    // time zone) has to be filtered read by read
+    private static void appendJSON(ByteArrayOutputStream out, RewindCache.Block b, TagDBSession s, long hour, LocalDateTime from, LocalDateTime to) {
+        if (b.isEmpty() || ((from == null || from.isBefore(b.first())) && (to == null || to.isAfter(b.last())))) {
+            appendJSON(out, b);
+        } else {
+            appendJSON(out, RewindCache.encode(filter(s.getReads(hour - 1, hour + TagDBRollup.HOUR), from, to)));
+        }
+    }
+
+    private static void appendJSON(ByteArrayOutputStream out, RewindCache.Block b) {
+        if (b.isEmpty()) {
+            return;
+        }
+        if (out.size() > 1) {
+            out.write(',');
+        }
+        out.writeBytes(b.json());
+    }
+
+    /**
+     * Reads of one chip in the named session (null for the current one) with
+     * a local timestamp after from and before to (null for unbounded) in time
+     * order. The EPC can be in decimal (the way the chips are usually
+     * printed) or hex. Anything that isn't all digits is taken as hex, use a
+     * 0x prefix for an all digit hex EPC.
+     */
+    public Collection<TagRead> getChipReads(String sessionName, String epc, LocalDateTime from, LocalDateTime to) {
+        int epcId = EPCDictionary.getInstance().find(hexEPC(epc));
+        if (epcId < 0) {
+            return Collections.emptyList();
+        }
+        long fromMilli = from == null ? Long.MIN_VALUE : fromEpochMilli(from);
+        long toMilli = to == null ? Long.MAX_VALUE : toEpochMilli(to);
+        return session(sessionName).getReads(epcId, fromMilli, toMilli).stream()
+                .filter(r -> (from == null || from.isBefore(r.getTimestamp())) && (to == null || to.isAfter(r.getTimestamp())))
+                .toList();
+    }
+
+    private static String hexEPC(String epc) {
+        String s = epc == null ? "" : epc.trim();
+        if (s.startsWith("0x") || s.startsWith("0X")) {
+            return s.substring(2);
+        }
+        if (!s.isEmpty() && s.chars().allMatch(Character::isDigit)) {
+            return new BigInteger(s).toString(16);
+        }
+        return s;
+    }
+
+    /**
+     * Up to limit reads in the named session (null for the current one) with
+     * a sequence number after the given one, in sequence order. Pass the
+     * sequence number of the last read back in to get the next page.
+     */
+    public List<TagRead> getReadsAfter(String sessionName, long after, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        return session(sessionName).getReadsAfter(after, limit);
+    }
+
+    /**
+     * Stream reads in the current session with a local timestamp after from
+     * and before to straight off of the disk in time order.
+     */
+    public void exportReads(LocalDateTime from, LocalDateTime to, Consumer<TagRead> consumer) throws IOException {
+        exportReads(null, from, to, consumer);
+    }
+
+    /**
+     * Stream reads in the named session (null for the current one) with a
+     * local timestamp after from and before to straight off of the disk in
+     * time order. Nothing is held in memory beyond what is needed to keep
+     * things sorted so this is safe for very large ranges.
+     */
+    public void exportReads(String sessionName, LocalDateTime from, LocalDateTime to, Consumer<TagRead> consumer) throws IOException {
+        long fromMilli = from == null ? Long.MIN_VALUE : fromEpochMilli(from);
+        long toMilli = to == null ? Long.MAX_VALUE : toEpochMilli(to);
+        session(sessionName).diskStore.forEach(fromMilli, toMilli, false, r -> {
+            if ((from == null || from.isBefore(r.getTimestamp())) && (to == null || to.isAfter(r.getTimestamp()))) {
+                consumer.accept(r);
+            }
+        });
+    }
+
+    /**
+     * Read counts, unique chips and max RSSI per reader and antenna in the
+     * named session (null for the current one) in per second or per minute
+     * buckets between from and to. These come from rollups kept as the reads
+     * come in, so the cost depends on the number of buckets and not the
+     * number of reads.
+     *
+     * @param bucket second or minute
+     */
+    public JSONObject getTimeline(String sessionName, LocalDateTime from, LocalDateTime to, String bucket) {
+        long bucketMillis = switch (bucket == null ? "minute" : bucket.toLowerCase()) {
+            case "second", "s", "1s" ->
+                TagDBRollup.SECOND;
+            case "minute", "m", "1m", "60s" ->
+                TagDBRollup.MINUTE;
+            default ->
+                throw new IllegalArgumentException("Unknown bucket: " + bucket);
+        };
+        if (from == null) {
+            throw new IllegalArgumentException("from is required");
+        }
+        long toMilli = to == null ? System.currentTimeMillis() + 1 : toEpochMilli(to);
+        return session(sessionName).getTimeline(fromEpochMilli(from), toMilli, bucketMillis);
+    }
+
+    // Be generous around a DST overlap, the callers then check the local time
+    static long fromEpochMilli(LocalDateTime from) {
+        return ZonedDateTime.ofLocal(from, pikaConfig.getTimezoneId(), null).withEarlierOffsetAtOverlap().toInstant().toEpochMilli() - 1;
+    }
+
+    static long toEpochMilli(LocalDateTime to) {
+        return ZonedDateTime.ofLocal(to, pikaConfig.getTimezoneId(), null).withLaterOffsetAtOverlap().toInstant().toEpochMilli() + 1;
+    }
+
+    /**
+     * Check the checksums of every data file in the named session (null for
+     * the current one) and report anything torn or corrupt. Nothing is
+     * changed on disk, torn writes are only cleaned up at startup.
+     */
+    public JSONObject verify(String sessionName) throws IOException {
+        TagDBSession s = session(sessionName);
+        JSONObject report = s.recovery.verify(journal.getSegmentPath());
+        report.put("session", s.getName());
+        return report;
+    }
+
+    public JSONObject getStatus() {
+        JSONObject status = session.getStatus();
+        maintenance.getStatus().toMap().forEach(status::put);
+        journal.getStatus().toMap().forEach(status::put);
+        tagQueue.getStatus().toMap().forEach(status::put);
+        status.put("reads", indexedReads.get());
+        status.put("sequence", sequence.last());
+        status.put("epcs", EPCDictionary.getInstance().size());
+        rewindCache.getStatus().toMap().forEach(status::put);
+        return status;
+    }
+
+    /**
+     * Queue a batch of reads for the DB. The reads are only in memory at
+     * this point (or in the spill file), see isDurable().
+     *
+     * @return the batch number to hand to isDurable()
+     */
+    public long addReads(Collection<TagRead> reads) {
+        return tagQueue.add(reads);
+    }
+
+    /**
+     * True once the given batch from addReads(), and everything before it,
+     * has been committed to the journal and will survive a crash.
+     */
+    public boolean isDurable(long batch) {
+        return batch <= durableBatches;
+    }
 
+    Path getPath() {
+        return dbPath;
     }
 
 }
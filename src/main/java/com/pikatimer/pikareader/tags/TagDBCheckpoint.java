@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot of the in-memory TagDB so a restart only has to replay the reads
+ * written since the last checkpoint.
+ *
+ * The checkpoint holds a manifest of every data file and how many bytes of it
+ * were already in memory when the snapshot was taken, followed by the reads
+ * in chunks of binary records so they can be decoded in parallel. On restart
+ * anything past the recorded length (or any file not in the manifest) is the
+ * tail that still needs to be replayed. If a file in the manifest has gone
+ * missing or shrunk, the checkpoint is thrown away and we do a full load.
+ *
+ * The hot cutoff in force when the snapshot was taken is saved with it. Reads
+ * before it may have been evicted from memory and so are not in the snapshot,
+ * even though their files are in the manifest, and a restart has to keep
+ * serving them from disk.
+ *
+ * <pre>
+ *  "PKCP" version(int) created(long) hotCutoff(long)
+ *  file count(int) { path length(short) path(utf8) length(long) }
+ *  chunk count(int) crc(int)
+ *  { bytes(int) reads(int) crc(int) records... }
+ * </pre>
+ *
+ * The header CRC32C covers everything before it and each chunk has its own
+ * over its records. A bad manifest could have us skip the real tail of a
+ * file, so any mismatch throws the whole checkpoint away and we do a full
+ * load, same as a checkpoint from an older version.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBCheckpoint.class);
+
+    static final String CHECKPOINT_FILE = "checkpoint.pkc";
+    private static final byte[] MAGIC = "PKCP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+    private static final int CHUNK_READS = 65536;
+
+    private final Path dbPath;
+    private final Path checkpointPath;
+
+    private volatile long lastCheckpoint = 0;
+    private volatile long lastCheckpointMillis = 0;
+    private volatile int lastCheckpointReads = 0;
+
+    TagDBCheckpoint(Path dbPath) {
+        this.dbPath = dbPath;
+        this.checkpointPath = dbPath.resolve(CHECKPOINT_FILE);
+    }
+
+    /**
+     * The state of the DB at a point in time. This has to be taken on the
+     * TagDBThread between batches so the manifest matches the reads.
+     */
+    record Capture(Instant created, long hotCutoff, Map<String, Long> manifest, TagReadColumns.Snapshot reads) {
+
+    }
+
+    /**
+     * A checkpoint loaded from disk.
+     */
+    record Snapshot(long hotCutoff, Map<String, Long> manifest, List<ByteBuffer> chunks) {
+
+    }
+
+    Capture capture(long hotCutoff, TagReadColumns.Snapshot reads) throws IOException {
+        Map<String, Long> manifest = new HashMap<>();
+        for (Path f : TagDBRecovery.dataFiles(dbPath)) {
+            manifest.put(dbPath.relativize(f).toString(), Files.size(f));
+        }
+        return new Capture(Instant.now(), hotCutoff, manifest, reads);
+    }
+
+    /**
+     * Write the captured state out to disk. Runs on the maintenance thread.
+     */
+    void write(Capture c) {
+        Instant start = Instant.now();
+        Path tmp = dbPath.resolve(CHECKPOINT_FILE + TagDBMaintenance.TEMP_SUFFIX);
+
+        // If a compaction or retention pass removed a file after the capture
+        // the manifest is already stale so don't bother.
+        for (Map.Entry<String, Long> e : c.manifest().entrySet()) {
+            Path f = dbPath.resolve(e.getKey());
+            try {
+                if (!Files.exists(f) || Files.size(f) < e.getValue()) {
+                    logger.debug("Skipping stale checkpoint, {} has changed", f);
+                    return;
+                }
+            } catch (IOException ex) {
+                return;
+            }
+        }
+
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(64 * 1024);
+            header.put(MAGIC).putInt(VERSION).putLong(c.created().toEpochMilli()).putLong(c.hotCutoff());
+            header.putInt(c.manifest().size());
+            for (Map.Entry<String, Long> e : c.manifest().entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                if (header.remaining() < name.length + 10) {
+                    header = ByteBuffer.allocate(header.capacity() * 2).put(header.flip());
+                }
+                header.putShort((short) name.length).put(name).putLong(e.getValue());
+            }
+            int chunkCount = (int) ((c.reads().size() + CHUNK_READS - 1) / CHUNK_READS);
+            if (header.remaining() < 8) {
+                header = ByteBuffer.allocate(header.capacity() + 8).put(header.flip());
+            }
+            header.putInt(chunkCount);
+            header.putInt(TagReadCodec.crc(header.duplicate().flip()));
+            writeFully(out, header.flip());
+
+            List<TagRead> chunk = new ArrayList<>(CHUNK_READS);
+            IOException[] error = new IOException[1];
+            c.reads().forEach(r -> {
+                chunk.add(r);
+                if (chunk.size() == CHUNK_READS && error[0] == null) {
+                    error[0] = writeChunk(out, chunk);
+                }
+            });
+            if (!chunk.isEmpty() && error[0] == null) {
+                error[0] = writeChunk(out, chunk);
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+            out.force(true);
+        } catch (IOException ex) {
+            logger.error("Unable to write checkpoint {}", tmp, ex);
+            return;
+        }
+
+        try {
+            Files.move(tmp, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Unable to save checkpoint {}", checkpointPath, ex);
+            return;
+        }
+
+        lastCheckpoint = c.created().toEpochMilli();
+        lastCheckpointReads = (int) c.reads().size();
+        lastCheckpointMillis = Duration.between(start, Instant.now()).toMillis();
+        logger.debug("Wrote checkpoint with {} reads in {}ms", lastCheckpointReads, lastCheckpointMillis);
+    }
+
+    /**
+     * Load the checkpoint if there is one and it still matches what is on
+     * disk.
+     *
+     * @return the snapshot or null if a full recovery is needed
+     */
+    Snapshot load() {
+        if (!Files.exists(checkpointPath)) {
+            return null;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+            byte[] magic = new byte[MAGIC.length];
+            b.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || b.getInt() != VERSION) {
+                logger.warn("Ignoring checkpoint {} with an unknown format", checkpointPath);
+                return null;
+            }
+            long created = b.getLong();
+            long hotCutoff = b.getLong();
+
+            Map<String, Long> manifest = new HashMap<>();
+            int files = b.getInt();
+            for (int i = 0; i < files; i++) {
+                byte[] name = new byte[b.getShort()];
+                b.get(name);
+                manifest.put(new String(name, StandardCharsets.UTF_8), b.getLong());
+            }
+            int chunkCount = b.getInt();
+            if (TagReadCodec.crc(b.slice(0, b.position())) != b.getInt()) {
+                logger.warn("Ignoring checkpoint {} with a bad header checksum", checkpointPath);
+                return null;
+            }
+
+            for (Map.Entry<String, Long> e : manifest.entrySet()) {
+                Path f = dbPath.resolve(e.getKey());
+                if (!Files.exists(f) || Files.size(f) < e.getValue()) {
+                    logger.warn("Ignoring checkpoint, {} is missing or has been truncated", f);
+                    return null;
+                }
+            }
+
+            List<ByteBuffer> chunks = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++) {
+                int bytes = b.getInt();
+                b.getInt();
+                int crc = b.getInt();
+                ByteBuffer chunk = b.slice(b.position(), bytes);
+                if (TagReadCodec.crc(chunk) != crc) {
+                    logger.warn("Ignoring checkpoint {} with a bad checksum on chunk {}", checkpointPath, i);
+                    return null;
+                }
+                chunks.add(chunk);
+                b.position(b.position() + bytes);
+            }
+
+            logger.info("Found checkpoint from {} covering {} files", Instant.ofEpochMilli(created), manifest.size());
+            return new Snapshot(hotCutoff, manifest, chunks);
+        } catch (Exception ex) {
+            logger.warn("Ignoring unreadable checkpoint {}", checkpointPath, ex);
+            return null;
+        }
+    }
+
+    static List<TagRead> decodeChunk(ByteBuffer chunk) {
+        List<TagRead> reads = new ArrayList<>();
+        decodeChunk(chunk, reads::add);
+        return reads;
+    }
+
+    static void decodeChunk(ByteBuffer chunk, Consumer<TagRead> sink) {
+        ByteBuffer b = chunk.duplicate();
+        while (b.hasRemaining()) {
+            TagRead r = TagReadCodec.decode(b);
+            if (r == null) {
+                break;
+            }
+            sink.accept(r);
+        }
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("checkpointLast", lastCheckpoint);
+        status.put("checkpointReads", lastCheckpointReads);
+        status.put("checkpointMillis", lastCheckpointMillis);
+        return status;
+    }
+
+    private static IOException writeChunk(FileChannel out, List<TagRead> chunk) {
+        ByteBuffer data = TagReadCodec.encode(chunk);
+        ByteBuffer chunkHeader = ByteBuffer.allocate(12).putInt(data.remaining()).putInt(chunk.size()).putInt(TagReadCodec.crc(data)).flip();
+        chunk.clear();
+        try {
+            writeFully(out, chunkHeader);
+            writeFully(out, data);
+            return null;
+        } catch (IOException ex) {
+            return ex;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time range queries straight off of the files on disk.
+ *
+ * Sealed hours are read through a memory map and only the records in the
+ * range are decoded. Hours that are still open are small enough to just read.
+ * Reads land in the hour directory they were written in, which can be a bit
+ * after they were read, so each hour is merged with the tail of the previous
+ * one before being handed to the consumer in time order. Memory use is
+ * bounded by a couple of hours of reads no matter how big the range is.
+ *
+ * Recently used sealed hours are kept decoded in a small LRU cache so that
+ * repeated rewinds of the same cold data don't keep going back to disk.
+ *
+ * The range of sequence numbers in each data file is remembered too, so a
+ * client paging through everything by sequence number only has to read the
+ * files that can hold its next page. The ranges are saved in a small file
+ * next to the data so they survive a restart:
+ *
+ * <pre>
+ *  "PKSQ" version(int) file count(int)
+ *  { path length(short) path(utf8) size(long) modified(long) min(long) max(long) }
+ *  crc(int)
+ * </pre>
+ *
+ * Each range is only trusted while the file still has the size and modified
+ * time it had when we read it. Journal segments are written in sequence
+ * order, so the first read in one we don't have a range for yet (like the
+ * one still being written) is a lower bound for everything in it.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBDiskStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBDiskStore.class);
+
+    // How late a read can be written to disk after it was read
+    static final Duration writeLag = Duration.ofHours(1);
+
+    private final Path dbPath;
+    private final Integer cacheHours;
+    private final ZoneId zoneId;
+    private final Map<Path, TagRead[]> hourCache;
+
+    static final String SEQUENCE_FILE = "sequences.pks";
+    private static final byte[] SEQUENCE_MAGIC = "PKSQ".getBytes(StandardCharsets.US_ASCII);
+    private static final int SEQUENCE_VERSION = 1;
+
+    // sequence number range of a data file, checked against its size and
+    // modified time in case it was appended to or a late read got merged in
+    private record SequenceRange(long size, long modified, long min, long max) {
+
+        static Optional<SequenceRange> of(Path f, long min, long max) {
+            try {
+                BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+                return Optional.of(new SequenceRange(a.size(), a.lastModifiedTime().toMillis(), min, max));
+            } catch (IOException ex) {
+                return Optional.empty();
+            }
+        }
+
+        boolean matches(Path f) {
+            return of(f, min, max).filter(this::equals).isPresent();
+        }
+    }
+
+    // keyed by the path relative to the dbPath, loaded on first use
+    private Map<String, SequenceRange> sequenceRanges;
+
+    // first sequence number in each journal segment, which never changes
+    private final Map<String, Long> firstSequences = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    TagDBDiskStore(Path dbPath, Integer cacheHours) {
+        // the journal names the directories in local time
+        this(dbPath, cacheHours, ZoneId.systemDefault());
+    }
+
+    /**
+     * For reading a DB that came from a box in another time zone.
+     */
+    TagDBDiskStore(Path dbPath, Integer cacheHours, ZoneId zoneId) {
+        this.dbPath = dbPath;
+        this.cacheHours = cacheHours;
+        this.zoneId = zoneId;
+        this.hourCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, TagRead[]> eldest) {
+                return size() > cacheHours;
+            }
+        });
+    }
+
+    /**
+     * Feed every read on disk with an epochMilli between from and to (both
+     * exclusive) to the consumer in time order. Big one-off scans like an
+     * export should skip the cache so they don't push everything else out.
+     */
+    void forEach(long from, long to, boolean useCache, Consumer<TagRead> consumer) throws IOException {
+        long lag = writeLag.toMillis();
+
+        PriorityQueue<TagRead> pending = new PriorityQueue<>(Comparator.comparingLong(TagRead::getEpochMilli));
+
+        for (Path hour : TagDBMaintenance.hourDirectories(dbPath)) {
+            long hourStart = TagDBMaintenance.hourOf(hour).atZone(zoneId).toInstant().toEpochMilli();
+            // reads in an hour directory can be up to the lag before the hour
+            if (hourStart + Duration.ofHours(1).toMillis() <= from || hourStart - lag >= to) {
+                continue;
+            }
+
+            // Nothing in this hour or later can come before this point
+            while (!pending.isEmpty() && pending.peek().getEpochMilli() < hourStart - lag) {
+                consumer.accept(pending.poll());
+            }
+
+            readHour(hour, from, to, useCache, pending::add);
+        }
+
+        while (!pending.isEmpty()) {
+            consumer.accept(pending.poll());
+        }
+    }
+
+    /**
+     * Up to limit reads with a sequence number after the given one, in
+     * sequence order. Files are read lowest sequence number first and we stop
+     * as soon as no file left can beat what we already have, so each page
+     * only costs the files it comes out of. Files we have no bound for at all
+     * (not looked at since they last changed and not a journal segment) are
+     * always read.
+     */
+    List<TagRead> getReadsAfter(long after, int limit) throws IOException {
+        TreeMap<Long, TagRead> best = new TreeMap<>();
+        Consumer<TagRead> keep = r -> {
+            long seq = r.getSequence();
+            if (seq <= after || (best.size() == limit && seq >= best.lastKey())) {
+                return;
+            }
+            best.putIfAbsent(seq, r);
+            if (best.size() > limit) {
+                best.pollLastEntry();
+            }
+        };
+
+        // Every file that may hold something after, lowest sequence number
+        // first. A null range means we have to read it to find out.
+        record Candidate(Path hour, Path file, long min, SequenceRange range) {
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        Set<String> seenFiles = new HashSet<>();
+        Map<String, SequenceRange> ranges;
+        synchronized (this) {
+            ranges = new HashMap<>(sequenceRanges());
+        }
+        for (Path hour : TagDBMaintenance.hourDirectories(dbPath)) {
+            for (Path f : dataFiles(hour)) {
+                String key = dbPath.relativize(f).toString();
+                seenFiles.add(key);
+                SequenceRange range = ranges.get(key);
+                if (range != null && range.matches(f)) {
+                    if (range.max() > after) {
+                        candidates.add(new Candidate(hour, f, range.min(), range));
+                    }
+                } else {
+                    candidates.add(new Candidate(hour, f, lowestSequence(key, f), null));
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingLong(Candidate::min));
+        firstSequences.keySet().retainAll(seenFiles);
+
+        Map<String, SequenceRange> learned = new HashMap<>();
+        for (Candidate c : candidates) {
+            if (best.size() == limit && c.min() >= best.lastKey()) {
+                break;
+            }
+            if (c.range() != null) {
+                readFile(c.hour(), c.file(), keep);
+                continue;
+            }
+
+            // stat it first so a change while we read makes it stale
+            Optional<SequenceRange> stamp = SequenceRange.of(c.file(), 0, 0);
+            long[] seq = {Long.MAX_VALUE, 0};
+            boolean read = readFile(c.hour(), c.file(), r -> {
+                if (r.getSequence() > 0) {
+                    seq[0] = Math.min(seq[0], r.getSequence());
+                    seq[1] = Math.max(seq[1], r.getSequence());
+                }
+                keep.accept(r);
+            });
+            if (read) {
+                stamp.ifPresent(v -> learned.put(dbPath.relativize(c.file()).toString(), new SequenceRange(v.size(), v.modified(), seq[0], seq[1])));
+            }
+        }
+
+        synchronized (this) {
+            // forget files that have been compacted or removed since
+            boolean changed = sequenceRanges.keySet().retainAll(seenFiles);
+            for (Map.Entry<String, SequenceRange> e : learned.entrySet()) {
+                changed |= !e.getValue().equals(sequenceRanges.put(e.getKey(), e.getValue()));
+            }
+            if (changed) {
+                saveSequenceRanges();
+            }
+        }
+        return new ArrayList<>(best.values());
+    }
+
+    // The data files in an hour. Once a compaction has started the .sealing
+    // file has everything.
+    private static List<Path> dataFiles(Path hour) throws IOException {
+        if (!Files.isDirectory(hour)) {
+            return List.of();
+        }
+        List<Path> files;
+        try (Stream<Path> l = Files.list(hour)) {
+            files = l.filter(TagDBRecovery::isDataFile).sorted().toList();
+        }
+        if (files.stream().anyMatch(TagDBRecovery::isSealing)) {
+            files = files.stream().filter(TagDBRecovery::isSealing).toList();
+        }
+        return files;
+    }
+
+    // No read in the file has a lower sequence number than this
+    private long lowestSequence(String key, Path f) {
+        if (!f.getFileName().toString().endsWith(TagJournal.SEGMENT_SUFFIX)) {
+            return Long.MIN_VALUE;
+        }
+        Long first = firstSequences.get(key);
+        if (first == null) {
+            try {
+                TagRead r = TagReadCodec.firstRead(f);
+                if (r == null) {
+                    // nothing written to it yet
+                    return Long.MAX_VALUE;
+                }
+                first = r.getSequence();
+                firstSequences.put(key, first);
+            } catch (IOException ex) {
+                return Long.MIN_VALUE;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Feed every read in one data file to the consumer. If a compaction got
+     * to the file first, the whole hour is read instead and we return false
+     * as what was read is no longer just the file.
+     */
+    private boolean readFile(Path hour, Path f, Consumer<TagRead> consumer) throws IOException {
+        Lock lock = TagDBMaintenance.hourLock(hour).readLock();
+        lock.lock();
+        try {
+            if (!Files.isRegularFile(f)) {
+                readHourLocked(hour, Long.MIN_VALUE, Long.MAX_VALUE, true, consumer);
+                return false;
+            }
+            if (f.getFileName().toString().endsWith(TagDBMaintenance.SEALED_SUFFIX) && cacheHours > 0 && dataFiles(hour).equals(List.of(f))) {
+                forEach(sealedHour(hour, f), Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+                return true;
+            }
+            readFileLocked(f, Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<String, SequenceRange> sequenceRanges() {
+        if (sequenceRanges == null) {
+            sequenceRanges = loadSequenceRanges();
+        }
+        return sequenceRanges;
+    }
+
+    // An unreadable file just costs us a pass over everything to rebuild it
+    private Map<String, SequenceRange> loadSequenceRanges() {
+        Map<String, SequenceRange> ranges = new HashMap<>();
+        Path f = dbPath.resolve(SEQUENCE_FILE);
+        if (!Files.exists(f)) {
+            return ranges;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f));
+            byte[] magic = new byte[SEQUENCE_MAGIC.length];
+            b.get(magic);
+            if (!Arrays.equals(magic, SEQUENCE_MAGIC) || b.getInt() != SEQUENCE_VERSION) {
+                logger.debug("Ignoring sequence ranges in {} from another version", f);
+                return ranges;
+            }
+            int count = b.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[b.getShort() & 0xFFFF];
+                b.get(name);
+                ranges.put(new String(name, StandardCharsets.UTF_8), new SequenceRange(b.getLong(), b.getLong(), b.getLong(), b.getLong()));
+            }
+            if (TagReadCodec.crc(b.slice(0, b.position())) != b.getInt()) {
+                logger.warn("Bad checksum in {}, rebuilding the sequence ranges", f);
+                ranges.clear();
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Unable to read sequence ranges from {}", f, ex);
+            ranges.clear();
+        }
+        return ranges;
+    }
+
+    // Caller holds the monitor
+    private void saveSequenceRanges() {
+        Path f = dbPath.resolve(SEQUENCE_FILE);
+        Path tmp = dbPath.resolve(SEQUENCE_FILE + TagDBMaintenance.TEMP_SUFFIX);
+        ByteBuffer b = ByteBuffer.allocate(16 + sequenceRanges.keySet().stream().mapToInt(k -> k.getBytes(StandardCharsets.UTF_8).length + 34).sum());
+        b.put(SEQUENCE_MAGIC).putInt(SEQUENCE_VERSION).putInt(sequenceRanges.size());
+        sequenceRanges.forEach((k, v) -> {
+            byte[] name = k.getBytes(StandardCharsets.UTF_8);
+            b.putShort((short) name.length).put(name).putLong(v.size()).putLong(v.modified()).putLong(v.min()).putLong(v.max());
+        });
+        b.putInt(TagReadCodec.crc(b.duplicate().flip()));
+        try {
+            Files.write(tmp, Arrays.copyOf(b.array(), b.position()));
+            Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Unable to save sequence ranges to {}", f, ex);
+        }
+    }
+
+    /**
+     * Feed the reads in one hour directory that fall in the range to the
+     * consumer. No ordering is guaranteed. Holds the hour's read lock so a
+     * compaction can't swap the files out part way through.
+     */
+    void readHour(Path hour, long from, long to, boolean useCache, Consumer<TagRead> consumer) throws IOException {
+        Lock lock = TagDBMaintenance.hourLock(hour).readLock();
+        lock.lock();
+        try {
+            readHourLocked(hour, from, to, useCache, consumer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readHourLocked(Path hour, long from, long to, boolean useCache, Consumer<TagRead> consumer) throws IOException {
+        // removed by the retention since we listed it
+        if (!Files.isDirectory(hour)) {
+            return;
+        }
+
+        TagRead[] cached = hourCache.get(hour);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            forEach(cached, from, to, consumer);
+            return;
+        }
+
+        List<Path> files = dataFiles(hour);
+
+        // Sealed hours never change so they are safe to cache
+        if (useCache && cacheHours > 0 && files.size() == 1 && files.get(0).getFileName().toString().endsWith(TagDBMaintenance.SEALED_SUFFIX)) {
+            forEach(sealedHour(hour, files.get(0)), from, to, consumer);
+            return;
+        }
+
+        for (Path f : files) {
+            readFileLocked(f, from, to, consumer);
+        }
+    }
+
+    // the decoded reads of a sealed hour, from the cache if we can
+    private TagRead[] sealedHour(Path hour, Path sealed) throws IOException {
+        TagRead[] cached = hourCache.get(hour);
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        cacheMisses.incrementAndGet();
+        List<TagRead> reads = new ArrayList<>();
+        SealedSegment.open(sealed).forEach(Long.MIN_VALUE, Long.MAX_VALUE, reads::add);
+        TagRead[] decoded = reads.toArray(TagRead[]::new);
+        hourCache.put(hour, decoded);
+        return decoded;
+    }
+
+    private static void readFileLocked(Path f, long from, long to, Consumer<TagRead> consumer) {
+        try {
+            if (f.getFileName().toString().endsWith(TagDBMaintenance.SEALED_SUFFIX) || TagDBRecovery.isSealing(f)) {
+                SealedSegment.open(f).forEach(from, to, consumer);
+            } else {
+                TagReadCodec.readFile(f).forEach(r -> {
+                    if (r.getEpochMilli() > from && r.getEpochMilli() < to) {
+                        consumer.accept(r);
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            logger.error("Error reading file at {}", f.toAbsolutePath(), ex);
+        }
+    }
+
+    // cached hours are sorted so we can jump straight to the start of the range
+    private static void forEach(TagRead[] sorted, long from, long to, Consumer<TagRead> consumer) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].getEpochMilli() <= from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < sorted.length && sorted[i].getEpochMilli() < to; i++) {
+            consumer.accept(sorted[i]);
+        }
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("coldCacheHours", hourCache.size());
+        status.put("coldCacheHits", cacheHits.get());
+        status.put("coldCacheMisses", cacheMisses.get());
+        return status;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background housekeeping for the TagDB.
+ *
+ * Drops anything older than the retention window from disk and memory and
+ * compacts each closed /yyyy/MM/dd/HH directory into a single sorted and
+ * indexed .sealed file (see SealedSegment). Every session on disk is
+ * covered, not just the current one.
+ *
+ * Sealed files are compressed (unless turned off) since they are never
+ * written to again. Hours sealed before compression was turned on are
+ * rewritten compressed on a later pass.
+ *
+ * Compaction writes a .tmp file, renames it to .sealing once it is safely on
+ * disk, removes the source files and then renames it to .sealed. If the power
+ * is pulled part way through, a .sealing file means the sources are already
+ * included in it and the recovery ignores them. A stray .tmp is ignored.
+ *
+ * Anything that reads an hour off of disk holds that hour's read lock, and
+ * the file swap at the end of a compaction (or the removal of an expired
+ * hour) holds the write lock, so an export or rewind never finds the files
+ * gone out from under it.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBMaintenance implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBMaintenance.class);
+
+    static final String SEALED_SUFFIX = ".sealed";
+    static final String SEALING_SUFFIX = ".sealing";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    // Give late reads a few minutes to land before calling an hour closed
+    private static final Duration closeDelay = Duration.ofMinutes(10);
+
+    private final Path dbPath;
+    private final Supplier<Path> activeSegment;
+    private final LongConsumer pruneBefore;
+    private final Runnable requestCheckpoint;
+    private final Integer retentionDays;
+    private final boolean compress;
+
+    private volatile long lastRun = 0;
+    private volatile long lastRunMillis = 0;
+    private final AtomicInteger prunedHours = new AtomicInteger();
+    private final AtomicInteger compactedHours = new AtomicInteger();
+    private final AtomicInteger compressedHours = new AtomicInteger();
+
+    // Striped so the locks don't pile up with the number of hours
+    private static final ReadWriteLock[] hourLocks = new ReadWriteLock[64];
+
+    static {
+        for (int i = 0; i < hourLocks.length; i++) {
+            hourLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    TagDBMaintenance(Path dbPath, Integer retentionDays, boolean compress, Supplier<Path> activeSegment, LongConsumer pruneBefore, Runnable requestCheckpoint) {
+        this.dbPath = dbPath;
+        this.retentionDays = retentionDays;
+        this.compress = compress;
+        this.activeSegment = activeSegment;
+        this.pruneBefore = pruneBefore;
+        this.requestCheckpoint = requestCheckpoint;
+    }
+
+    @Override
+    public void run() {
+        Instant start = Instant.now();
+        int changes = prunedHours.get() + compactedHours.get();
+        try {
+            if (retentionDays > 0) {
+                // memory first so a rewind never returns something we have deleted
+                pruneBefore.accept(Instant.now().minus(Duration.ofDays(retentionDays)).toEpochMilli());
+            }
+            for (Path root : TagDBSession.roots(dbPath)) {
+                if (retentionDays > 0) {
+                    prune(root);
+                }
+                compact(root);
+            }
+        } catch (Exception ex) {
+            // Never let an exception kill the scheduled task
+            logger.error("TagDB maintenance failed", ex);
+        }
+        // Moving files around invalidates the checkpoint manifest
+        if (changes != prunedHours.get() + compactedHours.get()) {
+            requestCheckpoint.run();
+        }
+
+        lastRun = start.toEpochMilli();
+        lastRunMillis = Duration.between(start, Instant.now()).toMillis();
+        logger.debug("TagDB maintenance done in {}ms", lastRunMillis);
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("retentionDays", retentionDays);
+        status.put("maintenanceLastRun", lastRun);
+        status.put("maintenanceMillis", lastRunMillis);
+        status.put("prunedHours", prunedHours.get());
+        status.put("compactedHours", compactedHours.get());
+        status.put("sealedCompression", compress);
+        status.put("compressedHours", compressedHours.get());
+        return status;
+    }
+
+    private void prune(Path root) throws IOException {
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(retentionDays);
+        logger.debug("Pruning TagDB data in {} before {}", root, cutoff);
+
+        for (Path hour : hourDirectories(root)) {
+            if (hourOf(hour).plusHours(1).isBefore(cutoff)) {
+                logger.info("Retention: removing {}", hour);
+                Lock lock = hourLock(hour).writeLock();
+                lock.lock();
+                try {
+                    deleteTree(hour);
+                } finally {
+                    lock.unlock();
+                }
+                prunedHours.incrementAndGet();
+            }
+        }
+
+        TagDBRollup.prune(root, Instant.now().minus(Duration.ofDays(retentionDays)).toEpochMilli());
+
+        // clean up any empty day / month / year directories
+        Path sessions = root.resolve(TagDBSession.SESSIONS_DIR);
+        try (Stream<Path> walk = Files.walk(root, 3)) {
+            walk.filter(p -> !p.equals(root) && !p.startsWith(sessions) && Files.isDirectory(p))
+                    .sorted(Comparator.reverseOrder())
+                    .forEach(p -> {
+                        try (Stream<Path> l = Files.list(p)) {
+                            if (l.findAny().isEmpty()) {
+                                Files.delete(p);
+                            }
+                        } catch (IOException ex) {
+                            logger.warn("Unable to remove empty directory {}", p);
+                        }
+                    });
+        }
+    }
+
+    private void compact(Path root) throws IOException {
+        LocalDateTime closed = LocalDateTime.now().minus(closeDelay);
+        Path active = activeSegment.get();
+
+        for (Path hour : hourDirectories(root)) {
+            if (!hourOf(hour).plusHours(1).isBefore(closed) || (active != null && hour.equals(active.getParent()))) {
+                continue;
+            }
+            try {
+                compactHour(hour);
+            } catch (IOException ex) {
+                logger.error("Unable to compact {}", hour, ex);
+            }
+        }
+    }
+
+    private void compactHour(Path hour) throws IOException {
+        String name = hour.getFileName().toString();
+        Path tmp = hour.resolve(name + SEALED_SUFFIX + TEMP_SUFFIX);
+        Path sealing = hour.resolve(name + SEALING_SUFFIX);
+        Path sealed = hour.resolve(name + SEALED_SUFFIX);
+
+        List<Path> sources;
+        try (Stream<Path> l = Files.list(hour)) {
+            sources = l.filter(TagDBRecovery::isDataFile).filter(p -> !p.equals(sealing)).sorted().toList();
+        }
+
+        // Finish off a compaction that was interrupted after the commit point
+        if (Files.exists(sealing)) {
+            swap(hour, null, sealing, sources, sealed);
+            logger.info("Finished interrupted compaction of {}", hour);
+            return;
+        }
+        Files.deleteIfExists(tmp);
+
+        boolean recompress = false;
+        if (sources.isEmpty()) {
+            return;
+        }
+        boolean wasCompressed = sources.contains(sealed) && SealedSegment.isCompressed(sealed);
+        if (sources.size() == 1 && sources.get(0).equals(sealed)) {
+            if (!compress || wasCompressed) {
+                return;
+            }
+            recompress = true;
+        }
+
+        List<TagRead> reads = new ArrayList<>();
+        for (Path p : sources) {
+            reads.addAll(TagReadCodec.readFile(p));
+        }
+        reads.sort(Comparator.comparingLong(TagRead::getEpochMilli));
+
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            SealedSegment.write(out, reads, compress);
+            out.force(true);
+        }
+
+        swap(hour, tmp, sealing, sources, sealed);
+
+        compactedHours.incrementAndGet();
+        // late reads get an hour compacted again, only count it once
+        if (compress && !wasCompressed) {
+            compressedHours.incrementAndGet();
+        }
+        if (recompress) {
+            logger.info("Compressed {} with {} reads", hour, reads.size());
+        } else {
+            logger.info("Compacted {} files with {} reads in {}", sources.size(), reads.size(), hour);
+        }
+    }
+
+    // Replace the sources with the sealed file while nobody is reading the
+    // hour. The move to .sealing is the commit point, tmp is null if that
+    // already happened.
+    private static void swap(Path hour, Path tmp, Path sealing, List<Path> sources, Path sealed) throws IOException {
+        Lock lock = hourLock(hour).writeLock();
+        lock.lock();
+        try {
+            if (tmp != null) {
+                Files.move(tmp, sealing, StandardCopyOption.ATOMIC_MOVE);
+            }
+            for (Path p : sources) {
+                Files.deleteIfExists(p);
+            }
+            Files.move(sealing, sealed, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The lock readers of an hour directory share and compaction and
+     * retention take for themselves.
+     */
+    static ReadWriteLock hourLock(Path hour) {
+        return hourLocks[Math.floorMod(hour.toAbsolutePath().normalize().hashCode(), hourLocks.length)];
+    }
+
+    /**
+     * All of the /yyyy/MM/dd/HH directories under the root in time order.
+     */
+    static List<Path> hourDirectories(Path root) throws IOException {
+        try (Stream<Path> walk = Files.walk(root, 4)) {
+            return walk.filter(Files::isDirectory)
+                    .filter(p -> root.relativize(p).getNameCount() == 4)
+                    .filter(p -> root.relativize(p).toString().matches("\\d{4}.\\d{2}.\\d{2}.\\d{2}"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    static LocalDateTime hourOf(Path hour) {
+        Path day = hour.getParent();
+        Path month = day.getParent();
+        Path year = month.getParent();
+        return LocalDateTime.of(Integer.parseInt(year.getFileName().toString()),
+                Integer.parseInt(month.getFileName().toString()),
+                Integer.parseInt(day.getFileName().toString()),
+                Integer.parseInt(hour.getFileName().toString()), 0);
+    }
+
+    private static void deleteTree(Path p) throws IOException {
+        try (Stream<Path> walk = Files.walk(p)) {
+            for (Path f : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline tool to merge the TagDBs from a bunch of boxes into one time sorted
+ * file, run with
+ *
+ * <pre>
+ *  java -jar PikaReader.jar merge [options] dir...
+ *
+ *  --format csv|ndjson   output format (csv)
+ *  --out file            write to a file rather than stdout
+ *  --session name        session to export from each DB (default)
+ *  --dedup               drop reads that show up more than once
+ *  --gate seconds        keep only the strongest read per chip per box in
+ *                        each gating window
+ *  --zone zone           time zone the boxes were in (this machine's)
+ * </pre>
+ *
+ * Each directory is read on its own thread straight off of the disk, in time
+ * order, into a small bounded queue, and the queues are merged on epochMilli.
+ * Nothing is ever loaded whole, so memory use only depends on the number of
+ * boxes and not on how many reads they have.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+public class TagDBMerge {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBMerge.class);
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUE_BATCHES = 16;
+    private static final List<TagRead> END = new ArrayList<>();
+
+    private static final String USAGE = """
+            Usage: java -jar PikaReader.jar merge [options] dir...
+              --format csv|ndjson   output format (csv)
+              --out file            write to a file rather than stdout
+              --session name        session to export from each DB (default)
+              --dedup               drop reads that show up more than once
+              --gate seconds        keep only the strongest read per chip per box in each window
+              --zone zone           time zone the boxes were in (this machine's)
+            """;
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSS");
+
+    private final List<Path> dirs = new ArrayList<>();
+    private final List<Source> sources = new ArrayList<>();
+    private boolean csv = true;
+    private Path out;
+    private String session = TagDBSession.DEFAULT_SESSION;
+    private boolean dedup = false;
+    private long gateMillis = 0;
+    private ZoneId zoneId = ZoneId.systemDefault();
+
+    private long written = 0;
+    private long duplicates = 0;
+    private long gated = 0;
+
+    private TagDBMerge() {
+    }
+
+    /**
+     * One box's DB, read in time order on its own thread.
+     */
+    private static class Source {
+
+        final int index;
+        final String name;
+        final Path path;
+        final BlockingQueue<List<TagRead>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        final AtomicLong reads = new AtomicLong();
+
+        // only touched by the reading thread
+        private List<TagRead> pending = new ArrayList<>(BATCH_SIZE);
+
+        // only touched by the merge
+        List<TagRead> batch;
+        int position;
+
+        Source(int index, String name, Path path) {
+            this.index = index;
+            this.name = name;
+            this.path = path;
+        }
+
+        void start(ZoneId zoneId) {
+            Thread t = new Thread(() -> {
+                TagDBDiskStore store = new TagDBDiskStore(path, 0, zoneId);
+                try {
+                    store.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, this::add);
+                    if (!pending.isEmpty()) {
+                        put(pending);
+                    }
+                } catch (IOException ex) {
+                    logger.error("Error reading {}", path, ex);
+                } finally {
+                    put(END);
+                }
+            });
+            t.setName("Merge-" + name);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void add(TagRead r) {
+            pending.add(r);
+            if (pending.size() == BATCH_SIZE) {
+                put(pending);
+                pending = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+
+        private void put(List<TagRead> reads) {
+            try {
+                this.reads.addAndGet(reads.size());
+                queue.put(reads);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * The next read without taking it, null once the source is done.
+         */
+        TagRead peek() throws InterruptedException {
+            while (batch != END && (batch == null || position == batch.size())) {
+                batch = queue.take();
+                position = 0;
+            }
+            return batch == END ? null : batch.get(position);
+        }
+
+        TagRead next() throws InterruptedException {
+            TagRead r = peek();
+            position++;
+            return r;
+        }
+    }
+
+    /**
+     * A read on its way out along with the box it came from.
+     */
+    private record Output(TagRead read, Source source) {
+
+    }
+
+    // An open gating window for one chip on one box
+    private static class Window {
+
+        final long key;
+        final long start;
+        Output best;
+
+        Window(long key, long start, Output best) {
+            this.key = key;
+            this.start = start;
+            this.best = best;
+        }
+    }
+
+    public static int run(String[] args) {
+        TagDBMerge merge = new TagDBMerge();
+        try {
+            merge.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        try {
+            merge.merge();
+            return 0;
+        } catch (IOException ex) {
+            System.err.println("Merge failed: " + ex.getMessage());
+            return 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--format" -> {
+                    String format = value(args, ++i, arg);
+                    if (!format.equalsIgnoreCase("csv") && !format.equalsIgnoreCase("ndjson")) {
+                        throw new IllegalArgumentException("Unknown format: " + format);
+                    }
+                    csv = format.equalsIgnoreCase("csv");
+                }
+                case "--out" ->
+                    out = Path.of(value(args, ++i, arg));
+                case "--session" -> {
+                    session = value(args, ++i, arg);
+                    if (!TagDBSession.isValidName(session)) {
+                        throw new IllegalArgumentException("Invalid session name: " + session);
+                    }
+                }
+                case "--dedup" ->
+                    dedup = true;
+                case "--gate" ->
+                    gateMillis = Math.round(Double.parseDouble(value(args, ++i, arg)) * 1000);
+                case "--zone" ->
+                    zoneId = ZoneId.of(value(args, ++i, arg));
+                default -> {
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    dirs.add(Path.of(arg));
+                }
+            }
+        }
+        if (dirs.isEmpty()) {
+            throw new IllegalArgumentException("No DB directories given");
+        }
+        for (Path dir : dirs) {
+            Path path = TagDBSession.pathOf(dir, session);
+            if (!Files.isDirectory(path)) {
+                throw new IllegalArgumentException("Not a directory: " + path);
+            }
+            sources.add(new Source(sources.size(), boxName(dir), path));
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[i];
+    }
+
+    // ~/.PikaReader is named after the directory it was copied into
+    private static String boxName(Path dir) {
+        Path p = dir.toAbsolutePath().normalize();
+        if (p.getFileName() == null) {
+            return dir.toString();
+        }
+        if (p.getFileName().toString().startsWith(".") && p.getParent() != null && p.getParent().getFileName() != null) {
+            return p.getParent().getFileName().toString();
+        }
+        return p.getFileName().toString();
+    }
+
+    private void merge() throws IOException, InterruptedException {
+        sources.forEach(s -> s.start(zoneId));
+
+        PriorityQueue<Source> heads = new PriorityQueue<>(Comparator
+                .comparingLong((Source s) -> s.batch.get(s.position).getEpochMilli())
+                .thenComparingInt(s -> s.index));
+        for (Source s : sources) {
+            if (s.peek() != null) {
+                heads.add(s);
+            }
+        }
+
+        try (Writer w = out == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            if (csv) {
+                w.write("box,chip,timestamp,epochMilli,reader,antenna,rssi,tz,seq\n");
+            }
+
+            // dedup is only ever within the same millisecond
+            long dedupEpochMilli = Long.MIN_VALUE;
+            Set<List<Object>> seen = new HashSet<>();
+
+            Map<Long, Window> windows = new HashMap<>();
+            ArrayDeque<Window> deadlines = new ArrayDeque<>();
+            PriorityQueue<Output> closed = new PriorityQueue<>(Comparator
+                    .comparingLong((Output o) -> o.read().getEpochMilli())
+                    .thenComparingInt(o -> o.source().index));
+
+            while (!heads.isEmpty()) {
+                Source s = heads.poll();
+                TagRead r = s.next();
+                if (s.peek() != null) {
+                    heads.add(s);
+                }
+                long now = r.getEpochMilli();
+
+                if (dedup) {
+                    if (now != dedupEpochMilli) {
+                        dedupEpochMilli = now;
+                        seen.clear();
+                    }
+                    if (!seen.add(List.of(r.epcId, r.readerID, r.antennaPortNumber, r.rssi))) {
+                        duplicates++;
+                        continue;
+                    }
+                }
+
+                if (gateMillis <= 0) {
+                    write(w, r, s);
+                    continue;
+                }
+
+                // close out every window that has run its course
+                while (!deadlines.isEmpty() && deadlines.peekFirst().start + gateMillis <= now) {
+                    Window done = deadlines.pollFirst();
+                    windows.remove(done.key);
+                    closed.add(done.best);
+                }
+
+                long key = ((long) s.index << 32) | (r.epcId & 0xFFFFFFFFL);
+                Window open = windows.get(key);
+                if (open == null) {
+                    open = new Window(key, now, new Output(r, s));
+                    windows.put(key, open);
+                    deadlines.addLast(open);
+                } else {
+                    gated++;
+                    if (open.best.read().rssi.compareTo(r.rssi) < 0) {
+                        open.best = new Output(r, s);
+                    }
+                }
+
+                // nothing still open can come out before its window started
+                long safe = deadlines.isEmpty() ? now : deadlines.peekFirst().start;
+                while (!closed.isEmpty() && closed.peek().read().getEpochMilli() < safe) {
+                    Output o = closed.poll();
+                    write(w, o.read(), o.source());
+                }
+            }
+
+            for (Window open : deadlines) {
+                closed.add(open.best);
+            }
+            while (!closed.isEmpty()) {
+                Output o = closed.poll();
+                write(w, o.read(), o.source());
+            }
+        }
+
+        for (Source s : sources) {
+            System.err.println("Read " + s.reads.get() + " reads from " + s.name + " (" + s.path + ")");
+        }
+        System.err.println("Wrote " + written + " reads" + (dedup ? ", dropped " + duplicates + " duplicates" : "")
+                + (gateMillis > 0 ? ", gated out " + gated : ""));
+    }
+
+    private void write(Writer w, TagRead r, Source s) throws IOException {
+        written++;
+        if (!csv) {
+            JSONObject o = r.toJSONObject();
+            o.put("box", s.name);
+            w.write(o.toString());
+            w.write('\n');
+            return;
+        }
+        w.write(csvField(s.name));
+        w.write(',');
+        w.write(r.getEPCDecimal());
+        w.write(',');
+        w.write(r.getTimestamp().format(formatter));
+        w.write(',');
+        w.write(Long.toString(r.getEpochMilli()));
+        w.write(',');
+        w.write(String.valueOf(r.readerID));
+        w.write(',');
+        w.write(String.valueOf(r.antennaPortNumber));
+        w.write(',');
+        w.write(String.valueOf(r.rssi));
+        w.write(',');
+        w.write(r.tzOffset == null ? "" : r.tzOffset);
+        w.write(',');
+        w.write(r.dbSequence > 0 ? Long.toString(r.dbSequence) : "");
+        w.write('\n');
+    }
+
+    private static String csvField(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup loader for the TagDB.
+ *
+ * Every data file is parsed on its own task in a small pool, but the reads
+ * are handed back in path order (which is also time order given the
+ * /yyyy/MM/dd/HH layout) so the store is always built the same way no matter
+ * which thread finished first. A task passes its reads along in chunks
+ * through a short queue, and only a few files past the one being handed back
+ * are parsed ahead, so at most a few chunks per thread are ever held in
+ * memory however big the hot window is.
+ *
+ * If there is a usable checkpoint its chunks are decoded first and only the
+ * part of each file written after the checkpoint is replayed.
+ *
+ * Journal files that end in a torn write (the power was pulled part way
+ * through a commit) are cut back to the end of the last good frame so the
+ * next append doesn't land after garbage. Only bad data that runs all the
+ * way to the end of the file counts as torn. A bad frame with good frames
+ * after it is skipped and counted, and the file is left as it is.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBRecovery {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBRecovery.class);
+
+    private final Path dbPath;
+
+    private final AtomicInteger totalFiles = new AtomicInteger();
+    private final AtomicInteger loadedFiles = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicLong loadedReads = new AtomicLong();
+    private volatile Boolean running = false;
+    private final AtomicLong checkpointReads = new AtomicLong();
+    private volatile long elapsedMillis = 0;
+    private final AtomicInteger tornFiles = new AtomicInteger();
+    private final AtomicLong truncatedBytes = new AtomicLong();
+    private final AtomicLong badFrames = new AtomicLong();
+
+    TagDBRecovery(Path dbPath) {
+        this.dbPath = dbPath;
+    }
+
+    // Reads are passed from the parse tasks to the sink this many at a time
+    private static final int CHUNK_READS = 8192;
+    // and each task can get this many chunks ahead before it waits
+    private static final int CHUNKS_AHEAD = 2;
+    private static final List<TagRead> END = Collections.emptyList();
+
+    /**
+     * One chunk of recovery work, either a checkpoint chunk or a data file
+     */
+    private interface RecoveryUnit {
+
+        void load(Consumer<TagRead> sink) throws IOException;
+    }
+
+    static boolean isDataFile(Path f) {
+        String name = f.getFileName().toString();
+        return Files.isRegularFile(f) && (name.endsWith(".dat") || name.endsWith(TagJournal.SEGMENT_SUFFIX)
+                || name.endsWith(TagDBMaintenance.SEALED_SUFFIX) || name.endsWith(TagDBMaintenance.SEALING_SUFFIX));
+    }
+
+    /**
+     * Every data file for the session rooted at root in path order. The
+     * default session lives at the top of the DB so skip the named sessions
+     * under it.
+     */
+    static List<Path> dataFiles(Path root) throws IOException {
+        Path sessions = root.resolve(TagDBSession.SESSIONS_DIR);
+        try (Stream<Path> walk = Files.walk(root)) {
+            return walk.filter(p -> !p.startsWith(sessions)).filter(TagDBRecovery::isDataFile).sorted().toList();
+        }
+    }
+
+    static boolean isSealing(Path f) {
+        return f.getFileName().toString().endsWith(TagDBMaintenance.SEALING_SUFFIX);
+    }
+
+    /**
+     * Load the checkpoint (if not null) and every data file under the dbPath
+     * that may hold reads after the hotCutoff and feed the reads to the sink.
+     * The sink is only ever called from the calling thread.
+     */
+    void run(TagDBCheckpoint.Snapshot snapshot, Consumer<TagRead> sink, long hotCutoff) {
+        running = true;
+        Instant start = Instant.now();
+
+        List<Path> files = Collections.emptyList();
+        try {
+            files = dataFiles(dbPath);
+        } catch (IOException ex) {
+            logger.error("Error reading DB at {}", dbPath.toAbsolutePath().toString(), ex);
+        }
+
+        // An interrupted compaction leaves a .sealing file that already holds
+        // everything else in that hour, so skip the leftovers.
+        Set<Path> sealing = files.stream().filter(TagDBRecovery::isSealing).map(Path::getParent).collect(Collectors.toSet());
+        if (!sealing.isEmpty()) {
+            files = files.stream().filter(f -> isSealing(f) || !sealing.contains(f.getParent())).toList();
+        }
+
+        List<RecoveryUnit> units = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+
+        Map<String, Long> manifest = snapshot == null ? Collections.emptyMap() : snapshot.manifest();
+        if (snapshot != null) {
+            for (ByteBuffer chunk : snapshot.chunks()) {
+                units.add(out -> TagDBCheckpoint.decodeChunk(chunk, r -> {
+                    checkpointReads.incrementAndGet();
+                    out.accept(r);
+                }));
+                names.add(TagDBCheckpoint.CHECKPOINT_FILE);
+            }
+        }
+
+        // Only the tail of each file past the checkpoint needs replaying
+        ZoneId zoneId = ZoneId.systemDefault();
+        for (Path f : files) {
+            // Skip hours that are entirely before the hot window
+            Path hour = f.getParent();
+            if (hotCutoff != Long.MIN_VALUE && dbPath.relativize(hour).getNameCount() == 4) {
+                try {
+                    long hourEnd = TagDBMaintenance.hourOf(hour).plusHours(1).atZone(zoneId).toInstant().toEpochMilli();
+                    if (hourEnd < hotCutoff) {
+                        continue;
+                    }
+                } catch (NumberFormatException ex) {
+                }
+            }
+
+            long offset = manifest.getOrDefault(dbPath.relativize(f).toString(), 0L);
+            try {
+                if (offset > 0 && offset >= Files.size(f)) {
+                    continue;
+                }
+            } catch (IOException ex) {
+            }
+            units.add(s -> replay(f, offset, s));
+            names.add(f.toAbsolutePath().toString());
+        }
+        totalFiles.set(units.size());
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "TagDBRecoveryThread-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<ParseTask> tasks = new ArrayList<>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            tasks.add(new ParseTask(units.get(i), names.get(i)));
+        }
+
+        // The pool starts tasks in the order they are queued, so the one
+        // being merged is always running or done
+        int ahead = threads + 1;
+        try {
+            for (int i = 0; i < Math.min(ahead, tasks.size()); i++) {
+                pool.execute(tasks.get(i));
+            }
+
+            // Merge everything back in file order as it is parsed
+            for (int i = 0; i < tasks.size(); i++) {
+                ParseTask task = tasks.get(i);
+                List<TagRead> chunk;
+                while ((chunk = task.chunks.take()) != END) {
+                    chunk.forEach(sink);
+                }
+                tasks.set(i, null);
+                if (i + ahead < tasks.size()) {
+                    pool.execute(tasks.get(i + ahead));
+                }
+            }
+        } catch (InterruptedException ex) {
+            logger.warn("DB recovery interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        elapsedMillis = Duration.between(start, Instant.now()).toMillis();
+        running = false;
+
+        logger.info("Recovered {} reads ({} from checkpoint) from {} files ({} failed) in {}ms", loadedReads.get(), checkpointReads.get(), loadedFiles.get(), failedFiles.get(), elapsedMillis);
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("recovering", running);
+        status.put("recoveryFiles", totalFiles.get());
+        status.put("recoveryFilesLoaded", loadedFiles.get());
+        status.put("recoveryFilesFailed", failedFiles.get());
+        status.put("recoveryReads", loadedReads.get());
+        status.put("recoveryCheckpointReads", checkpointReads.get());
+        status.put("recoveryMillis", elapsedMillis);
+        status.put("recoveryTornFiles", tornFiles.get());
+        status.put("recoveryTruncatedBytes", truncatedBytes.get());
+        status.put("recoveryBadFrames", badFrames.get());
+        return status;
+    }
+
+    // Journal files are the only ones that are appended to in place
+    private static boolean isJournalFile(Path f) {
+        String name = f.getFileName().toString();
+        return name.endsWith(".dat") || name.endsWith(TagJournal.SEGMENT_SUFFIX);
+    }
+
+    private void replay(Path f, long offset, Consumer<TagRead> sink) throws IOException {
+        TagReadCodec.Scan scan = TagReadCodec.scan(f, offset, sink);
+        if (scan.badFrames() > 0) {
+            badFrames.addAndGet(scan.badFrames());
+            logger.error("Skipped {} corrupt frames in {}", scan.badFrames(), f.toAbsolutePath());
+        }
+        if (scan.isTorn()) {
+            tornFiles.incrementAndGet();
+            if (isJournalFile(f)) {
+                logger.warn("Truncating a torn write of {} bytes from the end of {}", scan.tornBytes(), f.toAbsolutePath());
+                try (FileChannel channel = FileChannel.open(f, StandardOpenOption.WRITE)) {
+                    channel.truncate(scan.validBytes());
+                }
+                truncatedBytes.addAndGet(scan.tornBytes());
+            } else {
+                logger.error("{} bytes at the end of {} are unreadable", scan.tornBytes(), f.toAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Check every data file in the session without loading anything. The
+     * active journal segment is still being written to so a partial frame at
+     * the end of it is expected and is not reported as torn.
+     */
+    JSONObject verify(Path activeSegment) throws IOException {
+        JSONArray results = new JSONArray();
+        long frames = 0;
+        long reads = 0;
+        long bad = 0;
+        int torn = 0;
+        int failed = 0;
+
+        for (Path f : dataFiles(dbPath)) {
+            JSONObject result = new JSONObject();
+            result.put("file", dbPath.relativize(f).toString());
+            try {
+                TagReadCodec.Scan scan = TagReadCodec.scan(f, 0, r -> {
+                });
+                boolean active = f.equals(activeSegment);
+                result.put("format", scan.format());
+                result.put("frames", scan.frames());
+                result.put("reads", scan.reads());
+                result.put("badFrames", scan.badFrames());
+                result.put("tornBytes", scan.tornBytes());
+                if (scan.badFrames() > 0) {
+                    result.put("status", "corrupt");
+                } else if (scan.isTorn() && !active) {
+                    result.put("status", "torn");
+                    torn++;
+                } else {
+                    result.put("status", active ? "active" : "ok");
+                }
+                frames += scan.frames();
+                reads += scan.reads();
+                bad += scan.badFrames();
+            } catch (IOException | RuntimeException ex) {
+                result.put("status", "error");
+                result.put("error", ex.getMessage());
+                failed++;
+            }
+            results.put(result);
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("files", results.length());
+        report.put("frames", frames);
+        report.put("reads", reads);
+        report.put("badFrames", bad);
+        report.put("tornFiles", torn);
+        report.put("failedFiles", failed);
+        report.put("ok", bad == 0 && torn == 0 && failed == 0);
+        report.put("results", results);
+        return report;
+    }
+
+    /**
+     * Parse one unit on the pool, passing the reads to the merge in chunks.
+     * If the unit fails part way through the reads before the error are
+     * kept.
+     */
+    private class ParseTask implements Runnable {
+
+        private final RecoveryUnit unit;
+        private final String name;
+        final BlockingQueue<List<TagRead>> chunks = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+        private List<TagRead> chunk = new ArrayList<>(CHUNK_READS);
+
+        ParseTask(RecoveryUnit unit, String name) {
+            this.unit = unit;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                unit.load(r -> {
+                    chunk.add(r);
+                    if (chunk.size() == CHUNK_READS) {
+                        pass();
+                    }
+                });
+                pass();
+            } catch (CancellationException ex) {
+                return;
+            } catch (Exception ex) {
+                failedFiles.incrementAndGet();
+                logger.error("Error reading file at {}", name, ex);
+            }
+            loadedFiles.incrementAndGet();
+            try {
+                chunks.put(END);
+            } catch (InterruptedException ex) {
+                // nobody is waiting on us if the recovery was interrupted
+            }
+        }
+
+        private void pass() {
+            if (chunk.isEmpty()) {
+                return;
+            }
+            try {
+                chunks.put(chunk);
+            } catch (InterruptedException ex) {
+                throw new CancellationException();
+            }
+            loadedReads.addAndGet(chunk.size());
+            chunk = new ArrayList<>(CHUNK_READS);
+        }
+    }
+}
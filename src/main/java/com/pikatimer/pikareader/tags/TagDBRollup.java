@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per second and per minute read counts, unique chips and max RSSI for
+ * every reader / antenna in one session, so charting a whole race doesn't
+ * mean pulling down every read.
+ *
+ * The rollups are kept an hour (UTC) at a time. Hours that are still open
+ * are updated as reads are added to the TagDB. Once an hour is far enough
+ * back that no more reads should show up for it (the same lag the disk
+ * store allows for) it is saved under rollups/ in the session directory and
+ * dropped from memory. Any hour that isn't in memory or on disk, say from
+ * before rollups existed or from before a restart, is rebuilt from the reads
+ * the first time somebody asks for it.
+ *
+ * If a read shows up for an hour that has already been closed out the
+ * saved rollup is thrown away and rebuilt on the next request. A rebuild
+ * reads the hour back off of the disk, so until the journal has written the
+ * late read out it is neither saved nor cached.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBRollup {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBRollup.class);
+
+    static final String ROLLUP_DIR = "rollups";
+    static final String ROLLUP_SUFFIX = ".rollup";
+    private static final byte[] MAGIC = "PKRU".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 20;
+
+    static final long SECOND = 1000L;
+    static final long MINUTE = 60 * SECOND;
+    static final long HOUR = 60 * MINUTE;
+
+    // Longest range a single timeline request can cover
+    static final long MAX_RANGE = 31 * 24 * HOUR;
+
+    private static final int CACHE_HOURS = 48;
+    private static final DateTimeFormatter fileFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH");
+
+    private final Path rollupPath;
+
+    // Guarded by this
+    private final TreeMap<Long, Hour> open = new TreeMap<>();
+    private long openFrom = Long.MAX_VALUE;
+    private boolean loading = false;
+    private long invalidations = 0;
+    // closed hours with late reads the journal hasn't written out yet
+    private final Set<Long> unjournaled = new HashSet<>();
+    private final Map<Long, Hour> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Hour> eldest) {
+            return size() > CACHE_HOURS;
+        }
+    };
+
+    private long savedHours = 0;
+    private long rebuiltHours = 0;
+
+    /**
+     * One reader / antenna in one second or minute.
+     */
+    static final class Bucket {
+
+        final long start;
+        final int reader;
+        final int antenna;
+        int reads;
+        int chips;
+        float maxRssi = Float.NEGATIVE_INFINITY;
+
+        // only while the hour is open
+        IntSet seen = new IntSet();
+
+        Bucket(long start, int reader, int antenna) {
+            this.start = start;
+            this.reader = reader;
+            this.antenna = antenna;
+        }
+
+        void add(TagRead r) {
+            reads++;
+            if (seen.add(r.epcId)) {
+                chips++;
+            }
+            if (r.rssi != null && r.rssi > maxRssi) {
+                maxRssi = r.rssi.floatValue();
+            }
+        }
+
+        Bucket copy() {
+            Bucket b = new Bucket(start, reader, antenna);
+            b.reads = reads;
+            b.chips = chips;
+            b.maxRssi = maxRssi;
+            b.seen = null;
+            return b;
+        }
+    }
+
+    /**
+     * The second and minute buckets for one hour.
+     */
+    static final class Hour {
+
+        final long start;
+        final Map<Long, Bucket> seconds = new HashMap<>();
+        final Map<Long, Bucket> minutes = new HashMap<>();
+
+        Hour(long start) {
+            this.start = start;
+        }
+
+        void add(TagRead r) {
+            int reader = r.readerID == null ? 0 : r.readerID;
+            int antenna = r.antennaPortNumber == null ? 0 : r.antennaPortNumber;
+            bucket(seconds, r.getEpochMilli(), SECOND, reader, antenna).add(r);
+            bucket(minutes, r.getEpochMilli(), MINUTE, reader, antenna).add(r);
+        }
+
+        private Bucket bucket(Map<Long, Bucket> buckets, long epochMilli, long size, int reader, int antenna) {
+            long start = Math.floorDiv(epochMilli, size) * size;
+            // bucket in the hour on top, reader and antenna in the bottom
+            long key = ((start - this.start) / size << 32) | ((reader & 0xFFFFFFL) << 8) | (antenna & 0xFFL);
+            Bucket b = buckets.get(key);
+            if (b == null) {
+                b = new Bucket(start, reader, antenna);
+                buckets.put(key, b);
+            }
+            return b;
+        }
+
+        Map<Long, Bucket> buckets(long size) {
+            return size == SECOND ? seconds : minutes;
+        }
+
+        // A copy without the chip sets, safe to hand out
+        Hour copy() {
+            Hour h = new Hour(start);
+            seconds.forEach((k, b) -> h.seconds.put(k, b.copy()));
+            minutes.forEach((k, b) -> h.minutes.put(k, b.copy()));
+            return h;
+        }
+    }
+
+    TagDBRollup(Path sessionPath) {
+        rollupPath = sessionPath.resolve(ROLLUP_DIR);
+    }
+
+    static long hourOf(long epochMilli) {
+        return Math.floorDiv(epochMilli, HOUR) * HOUR;
+    }
+
+    // Hours that start before this are closed
+    static long closedBefore(long now) {
+        return hourOf(now - TagDBDiskStore.writeLag.toMillis());
+    }
+
+    /**
+     * Start a load of the hot window. Only hours that are still open and
+     * that the load covers from the start are kept in memory. Only called
+     * from the TagDBThread.
+     */
+    synchronized void load(long hotCutoff) {
+        open.clear();
+        long covered = hotCutoff == Long.MIN_VALUE ? Long.MIN_VALUE : hourOf(hotCutoff) + (hotCutoff == hourOf(hotCutoff) ? 0 : HOUR);
+        openFrom = Math.max(covered, closedBefore(System.currentTimeMillis()));
+        loading = true;
+    }
+
+    synchronized void loaded() {
+        loading = false;
+    }
+
+    /**
+     * Count a read. Only called from the TagDBThread.
+     */
+    synchronized void add(TagRead r) {
+        long hour = hourOf(r.getEpochMilli());
+        if (hour < openFrom) {
+            // a late read, or one from before the hot window while loading
+            if (!loading) {
+                invalidate(hour);
+            }
+            return;
+        }
+        Hour h = open.get(hour);
+        if (h == null) {
+            h = new Hour(hour);
+            open.put(hour, h);
+        }
+        h.add(r);
+    }
+
+    private void invalidate(long hour) {
+        invalidations++;
+        unjournaled.add(hour);
+        cache.remove(hour);
+        if (hour < closedBefore(System.currentTimeMillis())) {
+            try {
+                Files.deleteIfExists(fileOf(hour));
+            } catch (IOException ex) {
+                logger.warn("Unable to remove stale rollup for {}", fileOf(hour));
+            }
+        }
+    }
+
+    /**
+     * Everything added so far has been written to the journal, so a rebuild
+     * will find it on the disk. Only called from the TagDBThread.
+     */
+    synchronized void journaled() {
+        unjournaled.clear();
+    }
+
+    /**
+     * Save and drop any open hours that are now closed. Only called from the
+     * TagDBThread.
+     */
+    void close(long now) {
+        long closed = closedBefore(now);
+        List<Hour> done = new ArrayList<>();
+        long generation;
+        synchronized (this) {
+            if (openFrom == Long.MAX_VALUE || closed <= openFrom) {
+                return;
+            }
+            while (!open.isEmpty() && open.firstKey() < closed) {
+                Hour h = open.pollFirstEntry().getValue().copy();
+                done.add(h);
+                cache.put(h.start, h);
+            }
+            openFrom = closed;
+            generation = invalidations;
+        }
+        done.forEach(h -> save(h, generation));
+    }
+
+    /**
+     * Drop the saved rollups for every hour before the cutoff in a session
+     * directory. Called from the maintenance thread.
+     */
+    static void prune(Path sessionPath, long beforeEpochMilli) throws IOException {
+        Path dir = sessionPath.resolve(ROLLUP_DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> old;
+        try (Stream<Path> l = Files.list(dir)) {
+            old = l.filter(p -> p.getFileName().toString().endsWith(ROLLUP_SUFFIX))
+                    .filter(p -> {
+                        long hour = hourOf(p);
+                        return hour != Long.MIN_VALUE && hour + HOUR <= beforeEpochMilli;
+                    })
+                    .toList();
+        }
+        for (Path p : old) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    /**
+     * The buckets of the given size (SECOND or MINUTE) that overlap the range
+     * from and to (both exclusive) grouped by reader and antenna, and in time
+     * order within each group.
+     *
+     * @param reads where to get the reads for an hour that has to be rebuilt
+     */
+    JSONObject timeline(long fromEpochMilli, long toEpochMilli, long size, ReadSource reads) {
+        if (size != SECOND && size != MINUTE) {
+            throw new IllegalArgumentException("Invalid bucket size: " + size);
+        }
+        if (fromEpochMilli >= toEpochMilli) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        if (toEpochMilli - fromEpochMilli > MAX_RANGE) {
+            throw new IllegalArgumentException("Range is longer than " + MAX_RANGE / HOUR + " hours");
+        }
+
+        // reader and antenna in the key like the buckets themselves
+        TreeMap<Long, List<Bucket>> series = new TreeMap<>();
+        for (long hour = hourOf(fromEpochMilli); hour < toEpochMilli; hour += HOUR) {
+            hour(hour, reads).buckets(size).values().forEach(b -> {
+                if (b.start + size > fromEpochMilli + 1 && b.start < toEpochMilli) {
+                    series.computeIfAbsent(((b.reader & 0xFFFFFFL) << 8) | (b.antenna & 0xFFL), k -> new ArrayList<>()).add(b);
+                }
+            });
+        }
+
+        JSONArray data = new JSONArray();
+        series.values().forEach(buckets -> {
+            buckets.sort(Comparator.comparingLong(b -> b.start));
+            JSONArray t = new JSONArray();
+            JSONArray count = new JSONArray();
+            JSONArray chips = new JSONArray();
+            JSONArray rssi = new JSONArray();
+            buckets.forEach(b -> {
+                t.put(b.start);
+                count.put(b.reads);
+                chips.put(b.chips);
+                rssi.put(Float.isFinite(b.maxRssi) ? (Object) b.maxRssi : JSONObject.NULL);
+            });
+            JSONObject s = new JSONObject();
+            s.put("reader", buckets.get(0).reader);
+            s.put("antenna", buckets.get(0).antenna);
+            s.put("t", t);
+            s.put("reads", count);
+            s.put("chips", chips);
+            s.put("maxRssi", rssi);
+            data.put(s);
+        });
+
+        JSONObject timeline = new JSONObject();
+        timeline.put("bucket", size == SECOND ? "second" : "minute");
+        timeline.put("series", data);
+        return timeline;
+    }
+
+    /**
+     * Where the reads for a rebuilt hour come from, from and to are
+     * exclusive.
+     */
+    interface ReadSource {
+
+        Collection<TagRead> getReads(long fromEpochMilli, long toEpochMilli);
+    }
+
+    private Hour hour(long hour, ReadSource reads) {
+        long generation;
+        synchronized (this) {
+            if (hour >= openFrom) {
+                Hour h = open.get(hour);
+                return h == null ? new Hour(hour) : h.copy();
+            }
+            Hour cached = cache.get(hour);
+            if (cached != null) {
+                return cached;
+            }
+            // a rebuild now would miss the late reads
+            generation = unjournaled.contains(hour) ? -1 : invalidations;
+        }
+
+        Hour h = read(hour);
+        if (h == null) {
+            h = new Hour(hour);
+            for (TagRead r : reads.getReads(hour - 1, hour + HOUR)) {
+                h.add(r);
+            }
+            h = h.copy();
+            if (hour < closedBefore(System.currentTimeMillis())) {
+                synchronized (this) {
+                    rebuiltHours++;
+                }
+                save(h, generation);
+            }
+        }
+
+        synchronized (this) {
+            // don't keep it if a late read showed up while we were at it
+            if (generation == invalidations) {
+                cache.put(hour, h);
+            }
+        }
+        return h;
+    }
+
+    private Path fileOf(long hour) {
+        return rollupPath.resolve(LocalDateTime.ofInstant(Instant.ofEpochMilli(hour), ZoneOffset.UTC).format(fileFormat) + ROLLUP_SUFFIX);
+    }
+
+    private static long hourOf(Path f) {
+        String name = f.getFileName().toString();
+        try {
+            return LocalDateTime.parse(name.substring(0, name.length() - ROLLUP_SUFFIX.length()), fileFormat)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (RuntimeException ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /*
+     * Rollup file layout, all big endian:
+     *
+     *  magic    "PKRU"
+     *  version  int
+     *  hour     long   epochMilli of the start of the hour
+     *  seconds  int    number of second buckets
+     *  minutes  int    number of minute buckets
+     *  buckets         seconds then minutes, each
+     *    offset   short  buckets since the start of the hour
+     *    reader   int
+     *    antenna  short
+     *    reads    int
+     *    chips    int
+     *    maxRssi  float
+     *  crc      int    CRC32C of everything before it
+     */
+    private void save(Hour h, long generation) {
+        Path f = fileOf(h.start);
+        Path tmp = f.resolveSibling(f.getFileName() + TagDBMaintenance.TEMP_SUFFIX);
+        ByteBuffer b = ByteBuffer.allocate(MAGIC.length + 20 + (h.seconds.size() + h.minutes.size()) * RECORD_SIZE + 4);
+        b.put(MAGIC).putInt(VERSION).putLong(h.start).putInt(h.seconds.size()).putInt(h.minutes.size());
+        put(b, h, h.seconds.values(), SECOND);
+        put(b, h, h.minutes.values(), MINUTE);
+        b.putInt(TagReadCodec.crc(b.duplicate().flip()));
+        try {
+            Files.createDirectories(rollupPath);
+            Files.write(tmp, Arrays.copyOf(b.array(), b.position()));
+            synchronized (this) {
+                // a late read made it stale while we were writing it
+                if (generation != invalidations) {
+                    Files.deleteIfExists(tmp);
+                    return;
+                }
+                Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                savedHours++;
+            }
+        } catch (IOException ex) {
+            logger.error("Unable to save the rollup to {}", f, ex);
+        }
+    }
+
+    private static void put(ByteBuffer b, Hour h, Collection<Bucket> buckets, long size) {
+        for (Bucket r : buckets) {
+            b.putShort((short) ((r.start - h.start) / size)).putInt(r.reader).putShort((short) r.antenna)
+                    .putInt(r.reads).putInt(r.chips).putFloat(r.maxRssi);
+        }
+    }
+
+    // null if it isn't there or isn't any good
+    private Hour read(long hour) {
+        Path f = fileOf(hour);
+        try {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f));
+            byte[] magic = new byte[MAGIC.length];
+            if (b.remaining() < magic.length + 24) {
+                throw new IOException("Truncated rollup");
+            }
+            b.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || b.getInt() != VERSION || b.getLong() != hour) {
+                throw new IOException("Unknown rollup format");
+            }
+            int seconds = b.getInt();
+            int minutes = b.getInt();
+            if (seconds < 0 || minutes < 0 || b.remaining() != (long) (seconds + minutes) * RECORD_SIZE + 4
+                    || b.getInt(b.limit() - 4) != TagReadCodec.crc(b.duplicate().position(0).limit(b.limit() - 4))) {
+                throw new IOException("Bad rollup checksum");
+            }
+            Hour h = new Hour(hour);
+            get(b, h, h.seconds, seconds, SECOND);
+            get(b, h, h.minutes, minutes, MINUTE);
+            return h;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            logger.warn("Rebuilding rollup {}: {}", f, ex.getMessage());
+            return null;
+        }
+    }
+
+    private static void get(ByteBuffer b, Hour h, Map<Long, Bucket> buckets, int count, long size) {
+        for (int i = 0; i < count; i++) {
+            long offset = b.getShort() & 0xFFFF;
+            Bucket r = new Bucket(h.start + offset * size, b.getInt(), b.getShort());
+            r.reads = b.getInt();
+            r.chips = b.getInt();
+            r.maxRssi = b.getFloat();
+            r.seen = null;
+            buckets.put((offset << 32) | ((r.reader & 0xFFFFFFL) << 8) | (r.antenna & 0xFFL), r);
+        }
+    }
+
+    synchronized JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("rollupOpenHours", open.size());
+        status.put("rollupCachedHours", cache.size());
+        status.put("rollupSavedHours", savedHours);
+        status.put("rollupRebuiltHours", rebuiltHours);
+        return status;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One named session (event) in the TagDB.
+ *
+ * Each session has its own directory tree, checkpoint and in-memory hot
+ * window so that a rewind for today's race never has to look at last
+ * weekend's reads. The default session lives at the top of the DB directory
+ * where everything went before sessions existed, named sessions live under
+ * sessions/&lt;name&gt;/ with the same /yyyy/MM/dd/HH layout.
+ *
+ * Only the current session keeps reads in memory. Any other session is
+ * opened with an empty hot window so that everything comes off of the disk.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagDBSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagDBSession.class);
+
+    static final String SESSIONS_DIR = "sessions";
+    static final String DEFAULT_SESSION = "default";
+
+    private static final Pattern namePattern = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]{0,63}");
+
+    private final String name;
+    private final Path path;
+    final TagDBCheckpoint checkpoint;
+    final TagDBRecovery recovery;
+    final TagDBDiskStore diskStore;
+    final TagDBRollup rollup;
+
+    // Everything at or after the hotCutoff is in memory, anything before it
+    // has to come from disk.
+    private final AtomicLong hotCutoff = new AtomicLong(Long.MIN_VALUE);
+
+    // Hot reads in a compact column store, only the TagDBThread writes to it
+    private final TagReadColumns columns = new TagReadColumns();
+
+    // Every read with a sequence number above the floor is in memory
+    private volatile long sequenceFloor = 0;
+
+    TagDBSession(Path dbPath, String name, Integer cacheHours) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid session name: " + name);
+        }
+        this.name = name;
+        this.path = pathOf(dbPath, name);
+        this.checkpoint = new TagDBCheckpoint(path);
+        this.recovery = new TagDBRecovery(path);
+        this.diskStore = new TagDBDiskStore(path, cacheHours);
+        this.rollup = new TagDBRollup(path);
+    }
+
+    static boolean isValidName(String name) {
+        return name != null && namePattern.matcher(name).matches();
+    }
+
+    static Path pathOf(Path dbPath, String name) {
+        return DEFAULT_SESSION.equals(name) ? dbPath : dbPath.resolve(SESSIONS_DIR).resolve(name);
+    }
+
+    /**
+     * The names of every session on disk, the default session first.
+     */
+    static List<String> list(Path dbPath) throws IOException {
+        List<String> sessions = new ArrayList<>();
+        sessions.add(DEFAULT_SESSION);
+        Path dir = dbPath.resolve(SESSIONS_DIR);
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> l = Files.list(dir)) {
+                l.filter(Files::isDirectory)
+                        .map(p -> p.getFileName().toString())
+                        .filter(n -> isValidName(n) && !DEFAULT_SESSION.equals(n))
+                        .sorted()
+                        .forEach(sessions::add);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * The root directory of every session on disk.
+     */
+    static List<Path> roots(Path dbPath) throws IOException {
+        return list(dbPath).stream().map(n -> pathOf(dbPath, n)).toList();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void setHotCutoff(long epochMilli) {
+        hotCutoff.set(epochMilli);
+    }
+
+    long getHotCutoff() {
+        return hotCutoff.get();
+    }
+
+    /**
+     * Add a read to the hot window. Only called from the TagDBThread.
+     *
+     * Late reads from before the cutoff are kept too so that everything
+     * since the sequence floor is in memory. Time range lookups ignore
+     * anything in memory before the cutoff, they get it from the disk.
+     */
+    void index(TagRead r) {
+        columns.append(r);
+        rollup.add(r);
+    }
+
+    /**
+     * Set the sequence floor after a load. Anything that wasn't loaded was
+     * written before whatever was, so it has a lower sequence number.
+     *
+     * @param last the last sequence number handed out before the load
+     */
+    void loaded(long last) {
+        long min = columns.minSequence();
+        sequenceFloor = Math.max(columns.droppedMaxSequence(), min == Long.MAX_VALUE ? last : min - 1);
+    }
+
+    TagReadColumns.Snapshot hotSnapshot() {
+        return columns.snapshot();
+    }
+
+    /**
+     * Push anything outside of the hot window (by age or count) out of
+     * memory, but never anything newer than minHotWindow. Memory is freed a
+     * whole chunk at a time so the count limit is approximate. Only called
+     * from the TagDBThread.
+     */
+    void evict(Duration hotWindow, long hotMaxReads, Duration minHotWindow) {
+        long newest = Instant.now().minus(minHotWindow).toEpochMilli();
+        long cutoff = hotCutoff.get();
+        if (!hotWindow.isZero()) {
+            cutoff = Math.max(cutoff, Instant.now().minus(hotWindow).toEpochMilli());
+        }
+
+        if (hotMaxReads > 0 && columns.retained() > hotMaxReads) {
+            long oldest = columns.firstChunkMaxEpochMilli();
+            if (oldest < newest) {
+                cutoff = Math.max(cutoff, oldest + 1);
+            }
+        }
+
+        rollup.close(System.currentTimeMillis());
+
+        evictBefore(cutoff);
+        // raise the floor first so nobody can miss a chunk on its way out
+        long drop = hotCutoff.get();
+        sequenceFloor = Math.max(sequenceFloor, columns.maxSequenceBefore(drop));
+        columns.dropBefore(drop);
+    }
+
+    /**
+     * Stop serving anything before the epochMilli from memory. Safe to call
+     * from any thread, the memory itself is freed on the next evict().
+     */
+    void evictBefore(long epochMilli) {
+        hotCutoff.accumulateAndGet(epochMilli, Math::max);
+    }
+
+    /**
+     * Reads with an epochMilli between from and to (both exclusive) in time
+     * order. Reads in the hot window come straight out of memory, anything
+     * older is read back from disk.
+     */
+    Collection<TagRead> getReads(long fromEpochMilli, long toEpochMilli) {
+        if (fromEpochMilli >= toEpochMilli) {
+            return Collections.emptyList();
+        }
+
+        // the range is exclusive so start just before the cutoff
+        long hotFrom = Math.max(fromEpochMilli, Math.max(Long.MIN_VALUE + 1, hotCutoff.get()) - 1);
+        List<TagRead> hot = hotFrom < toEpochMilli ? columns.getReads(hotFrom, toEpochMilli) : Collections.emptyList();
+
+        // If an eviction moved the cutoff while we were copying we may have
+        // missed some, so get everything before the new cutoff from the disk.
+        long coldCutoff = hotCutoff.get();
+        if (coldCutoff == Long.MIN_VALUE || fromEpochMilli >= coldCutoff - 1) {
+            return hot;
+        }
+
+        List<TagRead> reads = new ArrayList<>();
+        try {
+            diskStore.forEach(fromEpochMilli, Math.min(toEpochMilli, coldCutoff), true, reads::add);
+        } catch (IOException ex) {
+            logger.error("Error reading cold reads from disk", ex);
+        }
+        hot.stream().filter(r -> r.getEpochMilli() >= coldCutoff).forEach(reads::add);
+        return reads;
+    }
+
+    /**
+     * Reads of one chip with an epochMilli between from and to (both
+     * exclusive) in time order. The hot window is served from the chip index
+     * so it only costs as much as the chip has reads. Anything older has to
+     * be scanned off of the disk, so keep the range tight for old data.
+     */
+    Collection<TagRead> getReads(int epcId, long fromEpochMilli, long toEpochMilli) {
+        if (fromEpochMilli >= toEpochMilli) {
+            return Collections.emptyList();
+        }
+
+        long hotFrom = Math.max(fromEpochMilli, Math.max(Long.MIN_VALUE + 1, hotCutoff.get()) - 1);
+        List<TagRead> hot = hotFrom < toEpochMilli ? columns.getReads(epcId, hotFrom, toEpochMilli) : Collections.emptyList();
+
+        long coldCutoff = hotCutoff.get();
+        if (coldCutoff == Long.MIN_VALUE || fromEpochMilli >= coldCutoff - 1) {
+            return hot;
+        }
+
+        List<TagRead> reads = new ArrayList<>();
+        try {
+            diskStore.forEach(fromEpochMilli, Math.min(toEpochMilli, coldCutoff), false, r -> {
+                if (r.epcId == epcId) {
+                    reads.add(r);
+                }
+            });
+        } catch (IOException ex) {
+            logger.error("Error reading cold reads from disk", ex);
+        }
+        hot.stream().filter(r -> r.getEpochMilli() >= coldCutoff).forEach(reads::add);
+        return reads;
+    }
+
+    /**
+     * Up to limit reads with a sequence number after the given one, in
+     * sequence order. A client that is caught up is served from memory, one
+     * that is further behind than the hot window gets it from the disk a few
+     * files at a time.
+     */
+    List<TagRead> getReadsAfter(long after, int limit) {
+        List<TagRead> hot = columns.getReadsAfter(after, limit);
+        // The floor goes up before a chunk is dropped, so reading it after the
+        // copy tells us if anything we skipped was already gone.
+        if (after >= Math.max(sequenceFloor, columns.droppedMaxSequence())) {
+            return hot;
+        }
+
+        // the limit lowest sequence numbers, the same read can turn up both
+        // in memory and on disk
+        TreeMap<Long, TagRead> best = new TreeMap<>();
+        try {
+            diskStore.getReadsAfter(after, limit).forEach(r -> best.put(r.getSequence(), r));
+        } catch (IOException ex) {
+            logger.error("Error reading cold reads from disk", ex);
+        }
+        hot.forEach(r -> best.putIfAbsent(r.getSequence(), r));
+        while (best.size() > limit) {
+            best.pollLastEntry();
+        }
+        return new ArrayList<>(best.values());
+    }
+
+    /**
+     * Per second or minute (bucketMillis) read counts, unique chips and max
+     * RSSI for each reader and antenna between from and to (both exclusive).
+     */
+    JSONObject getTimeline(long fromEpochMilli, long toEpochMilli, long bucketMillis) {
+        JSONObject timeline = rollup.timeline(fromEpochMilli, toEpochMilli, bucketMillis, this::getReads);
+        timeline.put("session", name);
+        return timeline;
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = recovery.getStatus();
+        checkpoint.getStatus().toMap().forEach(status::put);
+        diskStore.getStatus().toMap().forEach(status::put);
+        rollup.getStatus().toMap().forEach(status::put);
+        status.put("session", name);
+        status.put("hotReads", columns.retained());
+        status.put("hotCutoff", hotCutoff.get());
+        status.put("sequenceFloor", sequenceFloor);
+        return status;
+    }
+}
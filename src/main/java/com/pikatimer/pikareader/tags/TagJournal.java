@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal for the TagDB.
+ *
+ * Reads are appended to a single open segment file which is rolled over when
+ * the hour changes or when it grows past the max segment size. Segments live
+ * in the same /yyyy/MM/dd/HH/ tree as the older one-file-per-batch .dat files
+ * so the loader can treat both the same way.
+ *
+ * Segments are written in the binary TagReadCodec format, one checksummed
+ * frame per batch, unless the JSON format is selected, in which case each
+ * read is a TagRead.toJSON() line just like the original .dat files.
+ *
+ * Batches are group committed: they are collected in memory until the commit
+ * interval has passed or enough bytes have piled up and then written with a
+ * single channel write. The durability mode picks how hard we try to get them
+ * onto the disk:
+ *
+ * <pre>
+ *  None   write only, the OS flushes when it gets around to it
+ *  Group  force() once per group commit
+ *  Batch  write and force() every batch as soon as it shows up
+ * </pre>
+ *
+ * If a commit fails the group is kept and retried (in a new segment) a
+ * second later along with anything added since. Until a commit goes through
+ * the journal reports itself as unhealthy so the DB can hold off on
+ * checkpoints that would include reads that aren't on disk yet.
+ *
+ * Not thread safe, the TagDBThread is the only writer.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagJournal.class);
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final DateTimeFormatter hourFormatter = DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH");
+    private static final DateTimeFormatter segmentFormatter = DateTimeFormatter.ofPattern("/yyyy/MM/dd/HH/HH-mm-ss.SSS'" + SEGMENT_SUFFIX + "'");
+
+    private final Path dbPath;
+    private final long maxSegmentBytes;
+    private final boolean binary;
+    private final Durability durability;
+    private final long commitIntervalNanos;
+    private final int commitBytes;
+
+    enum Durability {
+        NONE, GROUP, BATCH;
+
+        static Durability of(String s) {
+            for (Durability d : values()) {
+                if (d.name().equalsIgnoreCase(s)) {
+                    return d;
+                }
+            }
+            logger.warn("Unknown DB durability '{}', using Group", s);
+            return GROUP;
+        }
+    }
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private long pendingSince = 0;
+
+    // Wait this long after a failed commit before trying again
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private long retryAfter = 0;
+    private volatile boolean healthy = true;
+    private volatile String lastError = null;
+    private final AtomicLong failedCommits = new AtomicLong();
+
+    // Written by the TagDBThread, read by whoever asks for the status
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedBytes = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private volatile long lastCommitNanos = 0;
+    private volatile long maxCommitNanos = 0;
+    private volatile long lastCommitWaitNanos = 0;
+
+    private FileChannel channel;
+    private volatile Path segmentPath;
+    private String segmentHour = "";
+    private long segmentBytes = 0;
+
+    TagJournal(Path dbPath, long maxSegmentBytes, boolean binary, Durability durability, long commitIntervalMillis, int commitBytes) {
+        this.dbPath = dbPath;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.binary = binary;
+        this.durability = durability;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        this.commitBytes = commitBytes;
+    }
+
+    /**
+     * Add a batch to the current group. In the Batch durability mode it is
+     * committed right away, otherwise it waits for commit().
+     */
+    void append(Collection<TagRead> reads) throws IOException {
+        if (reads.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer buffer;
+        if (binary) {
+            buffer = TagReadCodec.encodeFrame(reads);
+        } else {
+            StringBuilder data = new StringBuilder();
+            reads.forEach(read -> {
+                data.append(read.toJSON()).append(System.lineSeparator());
+            });
+            buffer = ByteBuffer.wrap(data.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        if (pending.position() == 0) {
+            pendingSince = System.nanoTime();
+        }
+        if (pending.remaining() < buffer.remaining()) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + buffer.remaining()));
+            pending = b.put(pending.flip());
+        }
+        pending.put(buffer);
+
+        if (durability == Durability.BATCH) {
+            commit();
+        }
+    }
+
+    /**
+     * True once the group has been open for the commit interval or has
+     * grown past the commit size.
+     */
+    boolean isCommitDue() {
+        long now = System.nanoTime();
+        return pending.position() > 0 && (healthy || now - retryAfter >= 0)
+                && (pending.position() >= commitBytes || now - pendingSince >= commitIntervalNanos);
+    }
+
+    /**
+     * How long until the current group is due, or the default if there is
+     * nothing waiting.
+     */
+    long nanosUntilCommit(long defaultNanos) {
+        if (pending.position() == 0) {
+            return defaultNanos;
+        }
+        long due = healthy ? pendingSince + commitIntervalNanos : Math.max(pendingSince + commitIntervalNanos, retryAfter);
+        return Math.max(0, Math.min(defaultNanos, due - System.nanoTime()));
+    }
+
+    /**
+     * True if everything appended so far has been committed.
+     */
+    boolean isCommitted() {
+        return pending.position() == 0;
+    }
+
+    /**
+     * False while there is a group that failed to commit and is waiting to
+     * be retried.
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Write out everything in the current group with one channel write and
+     * force it to disk if the durability mode calls for it. If the write
+     * fails the group is kept for the next try. Whatever part of it made it
+     * into the segment is truncated away, since those are valid frames and
+     * would otherwise be read back twice once the retry lands, and the
+     * segment is closed so the retry starts a new one.
+     */
+    void commit() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer buffer = pending.flip();
+        int bytes = buffer.remaining();
+        long groupStart = -1;
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            if (channel == null || !segmentHour.equals(now.format(hourFormatter)) || segmentBytes >= maxSegmentBytes) {
+                roll(now);
+            }
+
+            groupStart = segmentBytes;
+            while (buffer.hasRemaining()) {
+                segmentBytes += channel.write(buffer);
+            }
+            if (durability != Durability.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException ex) {
+            logger.error("Journal commit of {} bytes failed, will retry", bytes);
+            pending.limit(pending.capacity()).position(bytes);
+            healthy = false;
+            lastError = ex.getMessage();
+            failedCommits.incrementAndGet();
+            retryAfter = System.nanoTime() + RETRY_NANOS;
+            if (groupStart >= 0 && channel != null) {
+                try {
+                    channel.truncate(groupStart);
+                    channel.force(false);
+                } catch (IOException e) {
+                    logger.error("Unable to truncate {} back to {} bytes, the retried group may be read twice", segmentPath, groupStart, e);
+                }
+                segmentBytes = groupStart;
+            }
+            try {
+                close();
+            } catch (IOException e) {
+                channel = null;
+            }
+            throw ex;
+        }
+        pending.clear();
+        if (!healthy) {
+            logger.info("Journal commits are working again");
+            healthy = true;
+        }
+
+        long end = System.nanoTime();
+        commits.incrementAndGet();
+        committedBytes.addAndGet(bytes);
+        commitNanos.addAndGet(end - start);
+        lastCommitNanos = end - start;
+        maxCommitNanos = Math.max(maxCommitNanos, end - start);
+        lastCommitWaitNanos = end - pendingSince;
+    }
+
+    JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        status.put("durability", durability.name());
+        status.put("journalHealthy", healthy);
+        status.put("journalFailedCommits", failedCommits.get());
+        if (!healthy) {
+            status.put("journalError", lastError);
+        }
+        long c = commits.get();
+        status.put("commits", c);
+        status.put("commitBytes", committedBytes.get());
+        status.put("commitPendingBytes", pending.position());
+        status.put("commitLastMillis", lastCommitNanos / 1000000.0);
+        status.put("commitMaxMillis", maxCommitNanos / 1000000.0);
+        status.put("commitAvgMillis", c == 0 ? 0 : commitNanos.get() / c / 1000000.0);
+        // how long the oldest batch in the last group waited to be committed
+        status.put("commitLatencyMillis", lastCommitWaitNanos / 1000000.0);
+        return status;
+    }
+
+    private void roll(LocalDateTime now) throws IOException {
+        close();
+
+        // target file of <dbbapth>/YYYY/MM/DD/HH/HH-MM-ss.SSS.seg
+        segmentHour = now.format(hourFormatter);
+        segmentPath = Path.of(dbPath.toString() + now.format(segmentFormatter));
+        Files.createDirectories(segmentPath.getParent());
+
+        channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = channel.size();
+
+        if (binary && segmentBytes == 0) {
+            ByteBuffer header = TagReadCodec.header();
+            while (header.hasRemaining()) {
+                segmentBytes += channel.write(header);
+            }
+        }
+
+        logger.debug("Opened journal segment {}", segmentPath.toAbsolutePath());
+    }
+
+    Path getSegmentPath() {
+        return segmentPath;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            logger.debug("Closing journal segment {} at {} bytes", segmentPath.toAbsolutePath(), segmentBytes);
+            channel.close();
+            channel = null;
+        }
+    }
+}
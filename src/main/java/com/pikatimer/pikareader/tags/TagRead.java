@@ -18,6 +18,7 @@ package com.pikatimer.pikareader.tags;
 
 import java.math.BigInteger;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import org.json.JSONObject;
 
@@ -27,7 +28,11 @@ import org.json.JSONObject;
  */
 public class TagRead implements Comparable<TagRead> {
 
+    // The EPC as the reader gave it to us (or the dictionary's copy for
+    // reads loaded from disk)
     protected String hexEPC;
+    // EPCDictionary id for the EPC
+    protected int epcId;
     //protected String readerIP;
     protected LocalDateTime timestamp;
     protected Double rssi;
@@ -36,10 +41,16 @@ public class TagRead implements Comparable<TagRead> {
     protected Long epochMilli;
     protected String tzOffset;
 
+    // Durable TagDB sequence number, 0 until the read has been added to the
+    // TagDB (or for reads saved before sequence numbers existed)
+    long dbSequence;
+
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSS");
+    private static final EPCDictionary epcDictionary = EPCDictionary.getInstance();
 
     public void setEPC(String epc) {
         hexEPC = epc;
+        epcId = epcDictionary.intern(epc);
     }
 
     public String getEPC() {
@@ -47,7 +58,23 @@ public class TagRead implements Comparable<TagRead> {
     }
 
     public String getEPCDecimal() {
-        return new BigInteger(hexEPC, 16).toString();
+        return epcDictionary.getDecimal(epcId);
+    }
+
+    /**
+     * The TagDB sequence number, or 0 if the read doesn't have one.
+     */
+    public long getSequence() {
+        return dbSequence;
+    }
+
+    public int getEPCId() {
+        return epcId;
+    }
+
+    void setEPCId(int id) {
+        epcId = id;
+        hexEPC = epcDictionary.getHex(id);
     }
 
     public void setTimestamp(LocalDateTime tagTimestamp) {
@@ -95,6 +122,9 @@ public class TagRead implements Comparable<TagRead> {
         msg.put("rssi", rssi);
         msg.put("tz", tzOffset);
         msg.put("epochMilli",epochMilli);
+        if (dbSequence > 0) {
+            msg.put("seq", dbSequence);
+        }
         return msg;
     }
 
@@ -107,9 +137,20 @@ public class TagRead implements Comparable<TagRead> {
         antennaPortNumber = o.getInt("antenna");
         rssi = o.optDouble("rssi", 0.0);
         timestamp = LocalDateTime.parse(o.getString("timestamp"), formatter);
-        hexEPC = new BigInteger(o.getString("chip"), 10).toString(16); 
+        hexEPC = new BigInteger(o.getString("chip"), 10).toString(16);
+        epcId = epcDictionary.intern(hexEPC);
         tzOffset = o.optString("tz", "Z");
         epochMilli = o.optLong("epochMilli");
+        dbSequence = o.optLong("seq", 0);
+
+        // Really old reads did not have the epochMilli saved
+        if (epochMilli == 0) {
+            try {
+                epochMilli = timestamp.toInstant(ZoneOffset.of(tzOffset)).toEpochMilli();
+            } catch (Exception ex) {
+                epochMilli = timestamp.toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+        }
     }
 
     @Override
@@ -117,6 +158,10 @@ public class TagRead implements Comparable<TagRead> {
         return this.timestamp.compareTo(other.timestamp);
     }
 
+    public long getEpochMilli() {
+        return epochMilli == null ? 0 : epochMilli;
+    }
+
     public void setEpochMilli(Long epochMilli) {
         this.epochMilli = epochMilli;
     }
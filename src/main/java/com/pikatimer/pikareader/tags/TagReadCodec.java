@@ -0,0 +1,671 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On disk record formats for TagReads.
+ *
+ * Binary files start with an 8 byte header: the "PKRD" magic, a format
+ * version byte and 3 reserved bytes. Version 1 records are:
+ *
+ * <pre>
+ *  type       byte   1 = 128 bit EPC, 2 = long EPC
+ *  epochMilli long
+ *  reader     short
+ *  antenna    byte   (unsigned)
+ *  rssi       short  (hundredths of a dBm)
+ *  tz offset  short  (minutes)
+ *  epc        16 bytes for type 1, length byte + n bytes for type 2
+ * </pre>
+ *
+ * If the 0x10 bit of the type is set the record also carries the read's
+ * TagDB sequence number as a long right after the tz offset. Records written
+ * before sequence numbers existed simply don't have it.
+ *
+ * Version 2 files wrap the same records in frames so a torn or corrupt write
+ * can be told apart from good data. Each journal append (or sealed index
+ * block) is one frame:
+ *
+ * <pre>
+ *  length     int    bytes of records that follow
+ *  crc        int    CRC32C of those bytes
+ *  records
+ * </pre>
+ *
+ * A bad frame is skipped by searching forward byte by byte for the next
+ * good one, so one corrupt frame (or a garbage length) doesn't take the rest
+ * of the file with it. If there is no good frame anywhere after it, the bad
+ * data runs to the end of the file: that is a torn write from a power pull
+ * and is safe to cut off. Anything else is corruption and is left alone.
+ *
+ * The byte after the version in the header is the compression. Files that
+ * will never be written to again (sealed hours) can have each frame
+ * deflated on its own, in which case the records in the frame are replaced
+ * by the uncompressed length (int) and the deflated records. The CRC covers
+ * the compressed bytes so a bad frame is caught before it is inflated.
+ *
+ * The local timestamp is rebuilt from the epochMilli and tz offset. Anything
+ * that does not start with the magic is treated as the original JSON line
+ * format so older .dat files still load.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+public class TagReadCodec {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagReadCodec.class);
+
+    static final byte[] MAGIC = "PKRD".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION = 2;
+    static final byte VERSION_UNFRAMED = 1;
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_DEFLATE = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FRAME_HEADER_SIZE = 4 + 4;
+    private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    static final int EPC_BYTES = 16;
+    static final int RECORD_SIZE = 1 + 8 + 2 + 1 + 2 + 2 + 8 + EPC_BYTES;
+
+    private static final byte TYPE_EPC128 = 1;
+    private static final byte TYPE_LONG_EPC = 2;
+    private static final byte TYPE_MASK = 0x0F;
+    private static final byte FLAG_SEQUENCE = 0x10;
+
+    // There are only a handful of offsets in use at any one time
+    // so everybody shares the same String / ZoneOffset instances
+    private static final ConcurrentMap<Integer, ZoneOffset> offsetCache = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, String> offsetStringCache = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Integer> offsetSecondsCache = new ConcurrentHashMap<>();
+
+    private static final EPCDictionary epcDictionary = EPCDictionary.getInstance();
+
+    private TagReadCodec() {
+    }
+
+    public static ByteBuffer header() {
+        return header(COMPRESSION_NONE);
+    }
+
+    static ByteBuffer header(byte compression) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+        b.put(MAGIC).put(VERSION).put(compression).put((byte) 0).put((byte) 0);
+        return b.flip();
+    }
+
+    /**
+     * The format version from the header of a binary data file.
+     */
+    static byte version(ByteBuffer b) {
+        return b.get(MAGIC.length);
+    }
+
+    /**
+     * How the frames in a binary data file are compressed.
+     */
+    static byte compression(ByteBuffer b) {
+        return b.get(MAGIC.length + 1);
+    }
+
+    public static boolean hasHeader(ByteBuffer b) {
+        if (b.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (b.get(b.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static ByteBuffer encode(Collection<TagRead> reads) {
+        ByteBuffer b = ByteBuffer.allocate(reads.size() * RECORD_SIZE + 256);
+        for (TagRead r : reads) {
+            byte[] epc = epcBytes(r);
+            int needed = epc.length > EPC_BYTES ? RECORD_SIZE + epc.length : RECORD_SIZE;
+            if (b.remaining() < needed) {
+                b = ByteBuffer.allocate(b.capacity() * 2 + needed).put(b.flip());
+            }
+            encode(r, epc, b);
+        }
+        return b.flip();
+    }
+
+    /**
+     * Encode the reads as a single frame.
+     */
+    public static ByteBuffer encodeFrame(Collection<TagRead> reads) {
+        ByteBuffer records = encode(reads);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + records.remaining());
+        frame.putInt(records.remaining()).putInt(crc(records)).put(records);
+        return frame.flip();
+    }
+
+    /**
+     * Encode the reads as a single deflated frame. The deflater is reset and
+     * can be reused for the next frame.
+     */
+    static ByteBuffer encodeFrame(Collection<TagRead> reads, Deflater deflater) {
+        ByteBuffer records = encode(reads);
+        int length = records.remaining();
+
+        deflater.reset();
+        deflater.setInput(records);
+        deflater.finish();
+        byte[] out = new byte[FRAME_HEADER_SIZE + 4 + length / 2 + 64];
+        int position = FRAME_HEADER_SIZE + 4;
+        while (!deflater.finished()) {
+            if (position == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            position += deflater.deflate(out, position, out.length - position);
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(out, 0, position);
+        frame.putInt(FRAME_HEADER_SIZE, length);
+        int crc = crc(frame.slice(FRAME_HEADER_SIZE, position - FRAME_HEADER_SIZE));
+        frame.putInt(0, position - FRAME_HEADER_SIZE).putInt(4, crc);
+        return frame;
+    }
+
+    /**
+     * The records in a deflated frame.
+     *
+     * @throws IllegalArgumentException if the frame doesn't inflate
+     */
+    static ByteBuffer inflate(ByteBuffer payload) {
+        ByteBuffer b = payload.duplicate();
+        if (b.remaining() < 4) {
+            throw new IllegalArgumentException("Short frame");
+        }
+        int length = b.getInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Bad frame length " + length);
+        }
+        byte[] out = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b);
+            int position = 0;
+            while (position < length && !inflater.finished()) {
+                int n = inflater.inflate(out, position, length - position);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated frame");
+                }
+                position += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt frame", ex);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    static int crc(ByteBuffer b) {
+        CRC32C crc = new CRC32C();
+        crc.update(b.duplicate());
+        return (int) crc.getValue();
+    }
+
+    public static void encode(TagRead r, ByteBuffer b) {
+        encode(r, epcBytes(r), b);
+    }
+
+    private static void encode(TagRead r, byte[] epc, ByteBuffer b) {
+        byte type = epc.length > EPC_BYTES ? TYPE_LONG_EPC : TYPE_EPC128;
+        b.put(r.dbSequence > 0 ? (byte) (type | FLAG_SEQUENCE) : type);
+        b.putLong(r.epochMilli == null ? 0L : r.epochMilli);
+        b.putShort(r.readerID == null ? 0 : r.readerID.shortValue());
+        b.put(r.antennaPortNumber == null ? 0 : r.antennaPortNumber.byteValue());
+        b.putShort(r.rssi == null ? 0 : (short) Math.round(r.rssi * 100));
+        b.putShort((short) (offsetSeconds(r.tzOffset) / 60));
+        if (r.dbSequence > 0) {
+            b.putLong(r.dbSequence);
+        }
+        if (epc.length > EPC_BYTES) {
+            b.put((byte) epc.length).put(epc);
+        } else {
+            // right align the EPC in the fixed width slot
+            b.position(b.position() + EPC_BYTES - epc.length);
+            b.put(epc);
+        }
+    }
+
+    /**
+     * Decode a single record from the current position of the buffer.
+     *
+     * @return the read or null if the buffer ends part way through a record
+     */
+    public static TagRead decode(ByteBuffer b) {
+        int start = b.position();
+        try {
+            byte flags = b.get();
+            byte type = (byte) (flags & TYPE_MASK);
+            long epochMilli = b.getLong();
+            int reader = b.getShort();
+            int antenna = Byte.toUnsignedInt(b.get());
+            short rssi = b.getShort();
+            int offsetMinutes = b.getShort();
+            long sequence = (flags & FLAG_SEQUENCE) != 0 ? b.getLong() : 0;
+
+            int epcLength;
+            if ((flags & ~(TYPE_MASK | FLAG_SEQUENCE)) != 0) {
+                throw new IllegalArgumentException("Unknown record type " + flags + " at offset " + start);
+            } else if (type == TYPE_EPC128) {
+                epcLength = EPC_BYTES;
+            } else if (type == TYPE_LONG_EPC) {
+                epcLength = Byte.toUnsignedInt(b.get());
+            } else {
+                throw new IllegalArgumentException("Unknown record type " + type + " at offset " + start);
+            }
+            if (b.remaining() < epcLength) {
+                throw new BufferUnderflowException();
+            }
+            int epcId;
+            if (b.hasArray()) {
+                epcId = epcDictionary.intern(b.array(), b.arrayOffset() + b.position(), epcLength);
+            } else {
+                byte[] epc = new byte[epcLength];
+                b.get(b.position(), epc);
+                epcId = epcDictionary.intern(epc, 0, epcLength);
+            }
+            b.position(b.position() + epcLength);
+
+            ZoneOffset offset = offsetCache.computeIfAbsent(offsetMinutes, m -> ZoneOffset.ofTotalSeconds(m * 60));
+
+            TagRead r = new TagRead();
+            r.setEPCId(epcId);
+            r.epochMilli = epochMilli;
+            r.readerID = reader;
+            r.antennaPortNumber = antenna;
+            r.rssi = rssi / 100.0;
+            r.tzOffset = offsetStringCache.computeIfAbsent(offsetMinutes, m -> offset.toString());
+            r.timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMilli, 1000), Math.floorMod(epochMilli, 1000) * 1000000, offset);
+            r.dbSequence = sequence;
+            return r;
+        } catch (BufferUnderflowException ex) {
+            b.position(start);
+            return null;
+        }
+    }
+
+    /**
+     * Read every record in a data file, binary or JSON.
+     */
+    public static List<TagRead> readFile(Path f) throws IOException {
+        return readFile(f, 0);
+    }
+
+    /**
+     * Read the records in a data file starting at a byte offset that is known
+     * to be on a record (or frame) boundary, e.g. the file size at a
+     * checkpoint.
+     */
+    public static List<TagRead> readFile(Path f, long offset) throws IOException {
+        List<TagRead> reads = new ArrayList<>();
+        Scan scan = scan(f, offset, reads::add);
+        if (scan.badFrames() > 0) {
+            logger.error("Skipped {} corrupt frames in {}", scan.badFrames(), f.toAbsolutePath());
+        }
+        if (scan.isTorn()) {
+            logger.warn("Torn write, {} bytes at the end of {} are unreadable", scan.tornBytes(), f.toAbsolutePath());
+        }
+        return reads;
+    }
+
+    /**
+     * What we found in a data file.
+     *
+     * @param format json, v1 (unframed) or v2 (framed)
+     * @param frames good frames (lines for json, records for v1)
+     * @param reads reads that were decoded
+     * @param badFrames frames (or lines) that failed their checks and were
+     * skipped
+     * @param validBytes end of the last good data, the file can be cut back
+     * to this to get rid of a torn write
+     * @param dataBytes where the data ends (before any index trailer)
+     */
+    public record Scan(String format, long frames, long reads, long badFrames, long validBytes, long dataBytes) {
+
+        public boolean isTorn() {
+            return validBytes < dataBytes;
+        }
+
+        public long tornBytes() {
+            return dataBytes - validBytes;
+        }
+    }
+
+    /**
+     * Check and decode a data file from a byte offset on, feeding every good
+     * read to the sink. The file is read through a window a frame or so
+     * wide, so this is safe for segments of any size.
+     */
+    public static Scan scan(Path f, long offset, Consumer<TagRead> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+            Window w = new Window(channel, channel.size());
+
+            if (!hasHeader(w.slice(0, (int) Math.min(HEADER_SIZE, w.limit)))) {
+                return scanJSON(f, w, offset, sink);
+            }
+
+            ByteBuffer header = w.slice(0, HEADER_SIZE);
+            byte version = version(header);
+            boolean deflated = compression(header) == COMPRESSION_DEFLATE;
+            if (version != VERSION && version != VERSION_UNFRAMED) {
+                throw new IOException("Unsupported record format version " + version + " in " + f.toAbsolutePath());
+            }
+            w.limit = SealedSegment.dataLimit(channel);
+            long position = Math.min(w.limit, Math.max(HEADER_SIZE, offset));
+
+            long frames = 0;
+            long reads = 0;
+            long badFrames = 0;
+            long validBytes = position;
+
+            if (version == VERSION_UNFRAMED) {
+                while (position < w.limit) {
+                    ByteBuffer b = w.slice(position, (int) Math.min(WINDOW_SIZE, w.limit - position));
+                    while (b.hasRemaining()) {
+                        TagRead r = decode(b);
+                        if (r == null) {
+                            break;
+                        }
+                        sink.accept(r);
+                        frames++;
+                        reads++;
+                    }
+                    if (b.position() == 0) {
+                        // a partial record at the end
+                        break;
+                    }
+                    position += b.position();
+                    validBytes = position;
+                }
+                return new Scan("v1", frames, reads, badFrames, validBytes, w.limit);
+            }
+
+            while (w.limit - position >= FRAME_HEADER_SIZE) {
+                List<TagRead> frame = frameAt(w, position, deflated);
+                if (frame == null) {
+                    // If there is a good frame further on, what we skip over
+                    // is corruption. If not, it is a torn write at the end.
+                    long next = resync(w, position + 1, deflated);
+                    if (next < 0) {
+                        break;
+                    }
+                    logger.debug("Skipped {} corrupt bytes at {}", next - position, position);
+                    badFrames++;
+                    position = next;
+                    continue;
+                }
+                position += FRAME_HEADER_SIZE + w.getInt(position);
+                frame.forEach(sink);
+                frames++;
+                reads += frame.size();
+                validBytes = position;
+            }
+            return new Scan("v2", frames, reads, badFrames, validBytes, w.limit);
+        }
+    }
+
+    /**
+     * The first good read in a binary data file, or null if there isn't one
+     * (or it is a JSON file). Only reads as far as the first good frame.
+     */
+    static TagRead firstRead(Path f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)) {
+            Window w = new Window(channel, channel.size());
+            if (w.limit < HEADER_SIZE || !hasHeader(w.slice(0, HEADER_SIZE))) {
+                return null;
+            }
+            ByteBuffer header = w.slice(0, HEADER_SIZE);
+            w.limit = SealedSegment.dataLimit(channel);
+            if (version(header) == VERSION_UNFRAMED) {
+                return w.limit > HEADER_SIZE ? decode(w.slice(HEADER_SIZE, (int) Math.min(WINDOW_SIZE, w.limit - HEADER_SIZE))) : null;
+            }
+            if (version(header) != VERSION) {
+                return null;
+            }
+            boolean deflated = compression(header) == COMPRESSION_DEFLATE;
+            long position = HEADER_SIZE;
+            while (position >= 0 && w.limit - position >= FRAME_HEADER_SIZE) {
+                List<TagRead> frame = frameAt(w, position, deflated);
+                if (frame == null) {
+                    position = resync(w, position + 1, deflated);
+                } else if (!frame.isEmpty()) {
+                    return frame.get(0);
+                } else {
+                    position += FRAME_HEADER_SIZE + w.getInt(position);
+                }
+            }
+            return null;
+        }
+    }
+
+    // The reads in the frame at the position, or null if there isn't a good
+    // frame there
+    private static List<TagRead> frameAt(Window w, long position, boolean deflated) throws IOException {
+        int length = w.getInt(position);
+        if (length <= 0 || length > MAX_FRAME_SIZE || length > w.limit - position - FRAME_HEADER_SIZE) {
+            return null;
+        }
+        int crc = w.getInt(position + 4);
+        ByteBuffer records = w.slice(position + FRAME_HEADER_SIZE, length);
+        return crc == crc(records) ? decodeFrame(records, deflated) : null;
+    }
+
+    /**
+     * The start of the next good frame at or after the position, or -1 if
+     * there isn't one before the end of the data.
+     */
+    private static long resync(Window w, long position, boolean deflated) throws IOException {
+        for (; w.limit - position >= FRAME_HEADER_SIZE; position++) {
+            // cheap checks first so we only run the CRC on likely frames
+            int length = w.getInt(position);
+            if (length <= 0 || length > MAX_FRAME_SIZE || length > w.limit - position - FRAME_HEADER_SIZE) {
+                continue;
+            }
+            if (!deflated && !isRecordType(w.get(position + FRAME_HEADER_SIZE))) {
+                continue;
+            }
+            if (frameAt(w, position, deflated) != null) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isRecordType(byte flags) {
+        byte type = (byte) (flags & TYPE_MASK);
+        return (flags & ~(TYPE_MASK | FLAG_SEQUENCE)) == 0 && (type == TYPE_EPC128 || type == TYPE_LONG_EPC);
+    }
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * The part of a file we are looking at. Any range that isn't already in
+     * the buffer is read in fresh, along with whatever follows it, so
+     * walking forward through a file reads it once.
+     */
+    private static final class Window {
+
+        private final FileChannel channel;
+        private long limit;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        // file offset of the start of the buffer
+        private long base = 0;
+
+        Window(FileChannel channel, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+        }
+
+        /**
+         * n bytes of the file from the position on, which has to be within
+         * the limit.
+         */
+        ByteBuffer slice(long position, int n) throws IOException {
+            fill(position, n);
+            return buffer.slice((int) (position - base), n);
+        }
+
+        int getInt(long position) throws IOException {
+            fill(position, 4);
+            return buffer.getInt((int) (position - base));
+        }
+
+        byte get(long position) throws IOException {
+            fill(position, 1);
+            return buffer.get((int) (position - base));
+        }
+
+        private void fill(long position, int n) throws IOException {
+            if (position >= base && position + n <= base + buffer.limit()) {
+                return;
+            }
+            if (buffer.capacity() < n || buffer.capacity() < WINDOW_SIZE) {
+                buffer = ByteBuffer.allocate(Math.max(n, WINDOW_SIZE));
+            }
+            buffer.clear().limit((int) Math.min(buffer.capacity(), limit - position));
+            base = position;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, base + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (base + buffer.position()));
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    // null if anything in the frame doesn't decode
+    private static List<TagRead> decodeFrame(ByteBuffer records, boolean deflated) {
+        List<TagRead> reads = new ArrayList<>();
+        try {
+            if (deflated) {
+                records = inflate(records);
+            }
+            while (records.hasRemaining()) {
+                TagRead r = decode(records);
+                if (r == null) {
+                    return null;
+                }
+                reads.add(r);
+            }
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return reads;
+    }
+
+    private static Scan scanJSON(Path f, Window w, long offset, Consumer<TagRead> sink) throws IOException {
+        long position = Math.min(offset, w.limit);
+        long frames = 0;
+        long badFrames = 0;
+        long validBytes = position;
+
+        while (position < w.limit) {
+            // widen the window until it holds the whole line
+            int n = (int) Math.min(WINDOW_SIZE, w.limit - position);
+            ByteBuffer b = w.slice(position, n);
+            int end = indexOf(b, (byte) '\n');
+            long longest = Math.min(MAX_FRAME_SIZE, w.limit - position);
+            while (end < 0 && n < longest) {
+                n = (int) Math.min(2L * n, longest);
+                b = w.slice(position, n);
+                end = indexOf(b, (byte) '\n');
+            }
+            boolean terminated = end >= 0;
+            int length = terminated ? end : n;
+            String s = new String(b.array(), b.arrayOffset(), length, StandardCharsets.UTF_8);
+            position += terminated ? length + 1 : length;
+            if (!s.isBlank()) {
+                try {
+                    sink.accept(new TagRead(new JSONObject(s)));
+                    frames++;
+                } catch (JSONException ex) {
+                    if (!terminated) {
+                        // the last line was cut off part way through
+                        break;
+                    }
+                    logger.error("Error parsing {} in file at {}", s, f.toAbsolutePath().toString());
+                    badFrames++;
+                }
+            }
+            validBytes = position;
+        }
+        return new Scan("json", frames, frames, badFrames, validBytes, w.limit);
+    }
+
+    private static int indexOf(ByteBuffer b, byte value) {
+        for (int i = 0; i < b.limit(); i++) {
+            if (b.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] epcBytes(TagRead r) {
+        if (r.hexEPC == null) {
+            return new byte[]{0};
+        }
+        return epcDictionary.getBytes(r.epcId);
+    }
+
+    private static int offsetSeconds(String tzOffset) {
+        if (tzOffset == null || tzOffset.isEmpty()) {
+            return 0;
+        }
+        return offsetSecondsCache.computeIfAbsent(tzOffset, o -> {
+            try {
+                return ZoneOffset.of(o).getTotalSeconds();
+            } catch (Exception ex) {
+                logger.warn("Unable to parse tz offset {}", o);
+                return 0;
+            }
+        });
+    }
+}
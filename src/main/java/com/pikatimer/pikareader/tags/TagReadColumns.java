@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Append only, column oriented store for the in-memory reads.
+ *
+ * Instead of a TagRead object per read (150+ bytes once you count the boxed
+ * fields and the skip list node) each read is a row across a handful of
+ * primitive arrays, about 26 bytes all in:
+ *
+ * <pre>
+ *  long   epochMilli
+ *  int    epcId        see EPCDictionary
+ *  short  reader
+ *  byte   antenna
+ *  short  rssi         dBm * 100
+ *  byte   tz           index into the table of offsets seen so far
+ *  long   sequence     TagDB sequence number
+ * </pre>
+ *
+ * The rows live in fixed size chunks. There is a single writer (the
+ * TagDBThread) which fills in a row and then bumps the volatile size, so a
+ * reader that reads the size first can look at every row below it without
+ * any locks or copies. Rows are never changed once written.
+ *
+ * Rows are kept in the order they were added, which is close to but not
+ * quite time order. Each chunk tracks its min and max epochMilli so a range
+ * query only has to look at the chunks that overlap it, and old chunks are
+ * dropped from the front as a whole once everything in them is out of the
+ * hot window.
+ *
+ * A ChipIndex of the rows for each EPC is kept up to date as rows are added
+ * and dropped so a lookup for one chip only touches that chip's rows.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagReadColumns {
+
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk {
+
+        final long[] epochMilli = new long[CHUNK_SIZE];
+        final int[] epcId = new int[CHUNK_SIZE];
+        final short[] reader = new short[CHUNK_SIZE];
+        final byte[] antenna = new byte[CHUNK_SIZE];
+        final short[] rssi = new short[CHUNK_SIZE];
+        final byte[] tz = new byte[CHUNK_SIZE];
+        final long[] sequence = new long[CHUNK_SIZE];
+
+        // Only written by the writer, but read without a lock while it is
+        // still filling the chunk, and a plain long can tear on a 32-bit JVM
+        volatile long minEpochMilli = Long.MAX_VALUE;
+        volatile long maxEpochMilli = Long.MIN_VALUE;
+        volatile long minSequence = Long.MAX_VALUE;
+        volatile long maxSequence = 0;
+    }
+
+    // Dropped chunks are nulled out, everything from firstChunk on is live
+    private volatile Chunk[] chunks = new Chunk[16];
+    private volatile int firstChunk = 0;
+    private volatile long size = 0;
+
+    // Offsets are only ever added so readers can index without a lock
+    private volatile ZoneOffset[] offsets = new ZoneOffset[0];
+    private volatile String[] offsetStrings = new String[0];
+
+    private final ChipIndex chipIndex = new ChipIndex();
+
+    // Highest sequence number in any chunk that has been dropped
+    private volatile long droppedMaxSequence = 0;
+
+    /**
+     * Add a read. Only ever called from the writer thread.
+     */
+    void append(TagRead r) {
+        long row = size;
+        int c = (int) (row >>> CHUNK_SHIFT);
+        int i = (int) (row & CHUNK_MASK);
+
+        Chunk[] a = chunks;
+        if (c >= a.length) {
+            a = Arrays.copyOf(a, a.length * 2);
+            chunks = a;
+        }
+        Chunk chunk = a[c];
+        if (chunk == null) {
+            chunk = new Chunk();
+            a[c] = chunk;
+        }
+
+        long epochMilli = r.getEpochMilli();
+        chunk.epochMilli[i] = epochMilli;
+        chunk.epcId[i] = r.epcId;
+        chunk.reader[i] = r.readerID == null ? 0 : r.readerID.shortValue();
+        chunk.antenna[i] = r.antennaPortNumber == null ? 0 : r.antennaPortNumber.byteValue();
+        chunk.rssi[i] = r.rssi == null ? 0 : (short) Math.round(r.rssi * 100);
+        chunk.tz[i] = offsetIndex(r.tzOffset);
+        chunk.sequence[i] = r.dbSequence;
+        // only pay for the volatile write when the range actually grows
+        if (epochMilli < chunk.minEpochMilli) {
+            chunk.minEpochMilli = epochMilli;
+        }
+        if (epochMilli > chunk.maxEpochMilli) {
+            chunk.maxEpochMilli = epochMilli;
+        }
+        if (r.dbSequence > 0) {
+            if (r.dbSequence < chunk.minSequence) {
+                chunk.minSequence = r.dbSequence;
+            }
+            if (r.dbSequence > chunk.maxSequence) {
+                chunk.maxSequence = r.dbSequence;
+            }
+        }
+
+        // publish
+        size = row + 1;
+        chipIndex.add(r.epcId, row);
+    }
+
+    /**
+     * Rows still in memory.
+     */
+    long retained() {
+        return Math.max(0, size - ((long) firstChunk << CHUNK_SHIFT));
+    }
+
+    /**
+     * The newest epochMilli in the oldest live chunk, or Long.MAX_VALUE if
+     * there isn't a full chunk that could be dropped.
+     */
+    long firstChunkMaxEpochMilli() {
+        int c = firstChunk;
+        if (((long) (c + 1) << CHUNK_SHIFT) > size) {
+            return Long.MAX_VALUE;
+        }
+        return chunks[c].maxEpochMilli;
+    }
+
+    /**
+     * The highest sequence number in the chunks that dropBefore() would drop
+     * for the same cutoff, or 0 if it wouldn't drop any.
+     */
+    long maxSequenceBefore(long epochMilli) {
+        long max = 0;
+        Chunk[] a = chunks;
+        for (int c = firstChunk; ((long) (c + 1) << CHUNK_SHIFT) <= size && a[c].maxEpochMilli < epochMilli; c++) {
+            max = Math.max(max, a[c].maxSequence);
+        }
+        return max;
+    }
+
+    /**
+     * Drop full chunks from the front as long as everything in them is before
+     * the cutoff. Only ever called from the writer thread.
+     *
+     * @return how many rows were dropped
+     */
+    long dropBefore(long epochMilli) {
+        long dropped = 0;
+        Chunk[] a = chunks;
+        int c = firstChunk;
+        while (((long) (c + 1) << CHUNK_SHIFT) <= size && a[c].maxEpochMilli < epochMilli) {
+            droppedMaxSequence = Math.max(droppedMaxSequence, a[c].maxSequence);
+            a[c] = null;
+            c++;
+            dropped += CHUNK_SIZE;
+        }
+        firstChunk = c;
+        if (dropped > 0) {
+            chipIndex.dropBefore((long) c << CHUNK_SHIFT);
+        }
+        return dropped;
+    }
+
+    /**
+     * Reads with an epochMilli between from and to (both exclusive) in time
+     * order, ties in the order they were added.
+     */
+    List<TagRead> getReads(long from, long to) {
+        long end = size;
+        Chunk[] a = chunks;
+        List<TagRead> reads = new ArrayList<>();
+        for (int c = firstChunk; ((long) c << CHUNK_SHIFT) < end; c++) {
+            Chunk chunk = a[c];
+            if (chunk == null || chunk.maxEpochMilli <= from || chunk.minEpochMilli >= to) {
+                continue;
+            }
+            long base = (long) c << CHUNK_SHIFT;
+            int n = (int) Math.min(CHUNK_SIZE, end - base);
+            for (int i = 0; i < n; i++) {
+                long e = chunk.epochMilli[i];
+                if (e > from && e < to) {
+                    reads.add(read(chunk, i));
+                }
+            }
+        }
+        // Already close to sorted and the sort is stable so this is cheap
+        reads.sort(Comparator.comparingLong(TagRead::getEpochMilli));
+        return reads;
+    }
+
+    /**
+     * The highest sequence number that has been dropped from memory.
+     */
+    long droppedMaxSequence() {
+        return droppedMaxSequence;
+    }
+
+    /**
+     * The lowest sequence number still in memory, or Long.MAX_VALUE if there
+     * isn't one.
+     */
+    long minSequence() {
+        long end = size;
+        Chunk[] a = chunks;
+        long min = Long.MAX_VALUE;
+        for (int c = firstChunk; ((long) c << CHUNK_SHIFT) < end; c++) {
+            if (a[c] != null) {
+                min = Math.min(min, a[c].minSequence);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Up to limit reads with a sequence number after the given one, in
+     * sequence order. Rows are added in close to sequence order so once we
+     * have enough most chunks can be skipped by their range.
+     */
+    List<TagRead> getReadsAfter(long after, int limit) {
+        long end = size;
+        Chunk[] a = chunks;
+        // max heap of {sequence, row} so the worst candidate is on top
+        PriorityQueue<long[]> best = new PriorityQueue<>(Comparator.comparingLong((long[] e) -> e[0]).reversed());
+        for (int c = firstChunk; ((long) c << CHUNK_SHIFT) < end; c++) {
+            Chunk chunk = a[c];
+            if (chunk == null || chunk.maxSequence <= after
+                    || (best.size() == limit && chunk.minSequence >= best.peek()[0])) {
+                continue;
+            }
+            long base = (long) c << CHUNK_SHIFT;
+            int n = (int) Math.min(CHUNK_SIZE, end - base);
+            for (int i = 0; i < n; i++) {
+                long seq = chunk.sequence[i];
+                if (seq <= after) {
+                    continue;
+                }
+                if (best.size() < limit) {
+                    best.add(new long[]{seq, base + i});
+                } else if (seq < best.peek()[0]) {
+                    best.poll();
+                    best.add(new long[]{seq, base + i});
+                }
+            }
+        }
+
+        long[][] rows = best.toArray(long[][]::new);
+        Arrays.sort(rows, Comparator.comparingLong(e -> e[0]));
+        List<TagRead> reads = new ArrayList<>(rows.length);
+        for (long[] e : rows) {
+            Chunk chunk = a[(int) (e[1] >>> CHUNK_SHIFT)];
+            if (chunk != null) {
+                reads.add(read(chunk, (int) (e[1] & CHUNK_MASK)));
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Reads of one chip with an epochMilli between from and to (both
+     * exclusive) in time order.
+     */
+    List<TagRead> getReads(int epcId, long from, long to) {
+        long[] rows = chipIndex.rows(epcId);
+        Chunk[] a = chunks;
+        long first = (long) firstChunk << CHUNK_SHIFT;
+        List<TagRead> reads = new ArrayList<>();
+        for (long row : rows) {
+            int c = (int) (row >>> CHUNK_SHIFT);
+            Chunk chunk = row < first || c >= a.length ? null : a[c];
+            if (chunk == null) {
+                continue;
+            }
+            int i = (int) (row & CHUNK_MASK);
+            long e = chunk.epochMilli[i];
+            if (e > from && e < to) {
+                reads.add(read(chunk, i));
+            }
+        }
+        reads.sort(Comparator.comparingLong(TagRead::getEpochMilli));
+        return reads;
+    }
+
+    /**
+     * A consistent view of every live row as of now. The rows in it never
+     * change, so it can be walked from any thread at any time.
+     */
+    Snapshot snapshot() {
+        long end = size;
+        int first = firstChunk;
+        Chunk[] a = chunks;
+        int last = (int) ((end + CHUNK_MASK) >>> CHUNK_SHIFT);
+        return new Snapshot(Arrays.copyOfRange(a, first, Math.max(first, last)), (long) first << CHUNK_SHIFT, end);
+    }
+
+    final class Snapshot {
+
+        private final Chunk[] chunks;
+        private final long start;
+        private final long end;
+
+        private Snapshot(Chunk[] chunks, long start, long end) {
+            this.chunks = chunks;
+            this.start = start;
+            this.end = end;
+        }
+
+        long size() {
+            return Math.max(0, end - start);
+        }
+
+        void forEach(Consumer<TagRead> consumer) {
+            for (int c = 0; c < chunks.length; c++) {
+                long base = start + ((long) c << CHUNK_SHIFT);
+                int n = (int) Math.min(CHUNK_SIZE, end - base);
+                for (int i = 0; i < n; i++) {
+                    consumer.accept(read(chunks[c], i));
+                }
+            }
+        }
+    }
+
+    private TagRead read(Chunk chunk, int i) {
+        int tz = Byte.toUnsignedInt(chunk.tz[i]);
+        long epochMilli = chunk.epochMilli[i];
+        ZoneOffset offset = offsets[tz];
+
+        TagRead r = new TagRead();
+        r.setEPCId(chunk.epcId[i]);
+        r.epochMilli = epochMilli;
+        r.readerID = (int) chunk.reader[i];
+        r.antennaPortNumber = Byte.toUnsignedInt(chunk.antenna[i]);
+        r.rssi = chunk.rssi[i] / 100.0;
+        r.tzOffset = offsetStrings[tz];
+        r.timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMilli, 1000), Math.floorMod(epochMilli, 1000) * 1000000, offset);
+        r.dbSequence = chunk.sequence[i];
+        return r;
+    }
+
+    // Only called from the writer
+    private byte offsetIndex(String tzOffset) {
+        String s = tzOffset == null || tzOffset.isEmpty() ? "Z" : tzOffset;
+        String[] known = offsetStrings;
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].equals(s)) {
+                return (byte) i;
+            }
+        }
+        ZoneOffset offset;
+        try {
+            offset = ZoneOffset.of(s);
+        } catch (Exception ex) {
+            offset = ZoneOffset.UTC;
+        }
+        // More than 256 offsets in one session is not going to happen, but
+        // if it does lump the rest in with the last one.
+        if (known.length == 256) {
+            return (byte) 255;
+        }
+        ZoneOffset[] o = Arrays.copyOf(offsets, known.length + 1);
+        o[known.length] = offset;
+        String[] k = Arrays.copyOf(known, known.length + 1);
+        k[known.length] = s;
+        // the offset has to be there before anybody can see its index
+        offsets = o;
+        offsetStrings = k;
+        return (byte) known.length;
+    }
+}
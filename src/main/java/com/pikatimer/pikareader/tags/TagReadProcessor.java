@@ -19,15 +19,19 @@ package com.pikatimer.pikareader.tags;
 import com.pikatimer.pikareader.conf.PikaConfig;
 import com.pikatimer.pikareader.readers.ReaderGatingStyle;
 import com.pikatimer.pikareader.status.StatusHandler;
+import com.pikatimer.pikareader.util.SpscRing;
 import java.awt.Toolkit;
 import java.time.Duration;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,20 +39,30 @@ import org.slf4j.LoggerFactory;
  *
  * @author John Garner <segfaultcoredump@gmail.com>
  */
-public class TagReadProcessor implements Runnable {
+public class TagReadProcessor {
 
-    private static final BlockingQueue<TagRead> tagQueue = new ArrayBlockingQueue<>(100000);
     private static final Logger logger = LoggerFactory.getLogger(TagReadProcessor.class);
     private static final PikaConfig pikaConfig = PikaConfig.getInstance();
     private static final TagReadRouter tagRouter = TagReadRouter.getInstance();
     private static final StatusHandler statusHandler = StatusHandler.getInstance();
+    private static final RawArchive rawArchive = RawArchive.getInstance();
 
     DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSS");
 
-    Map<String, TagRead> seenTags = new HashMap<>();
+    Map<Integer, TagRead> seenTags = new HashMap<>();
     Integer defaultGating = 3000;
 
-    private Thread tagProcessingThread;
+    // Gating is split up by chip across one shard per core
+    private volatile GatingShard[] shards;
+
+    // Each reader gets its own ring into each shard, rings[reader][shard],
+    // so the reader threads never contend with each other. Readers with an
+    // id outside of 0 - MAX_READERS share the last row and take turns.
+    private static final int MAX_READERS = 1024;
+    private static final int MAX_BATCH = 4096;
+    private volatile SpscRing<TagRead>[][] rings = emptyRings();
+    private final Object sharedRingLock = new Object();
+    private final AtomicLong lastOverflowWarning = new AtomicLong();
 
     /**
      * SingletonHolder is loaded on the first execution of
@@ -65,105 +79,297 @@ public class TagReadProcessor implements Runnable {
         return SingletonHolder.INSTANCE;
     }
 
-    @Override
-    public void run() {
-        
-
-        try {
-            while (true) {
+    /**
+     * One gating thread and everything it owns. Every gating key starts with
+     * the epcId so all of the reads for a chip land on the same shard no
+     * matter the gating style, and the shards never have to talk to each
+     * other.
+     *
+     * Gating runs per key (chip, chip + reader, or chip + reader + antenna
+     * depending on the gating style). The first read of a key opens a window
+     * for that key alone, and when the window closes the strongest read in
+     * it is sent to the router right away rather than waiting on everybody
+     * else. Every window is the same length so they close in the order they
+     * were opened and a plain FIFO of deadlines is all we need. If the gating
+     * time is raised the windows that are already open keep their deadline.
+     * If it is lowered they are cut down to the new time, otherwise new short
+     * windows would be stuck behind the old long ones.
+     *
+     * Nothing here allocates per raw read, the lists and the GatingTable are
+     * reused and only the batch handed to the router is new.
+     *
+     * Reads come in over one ring per reader. When every ring is empty the
+     * thread parks until the next window closes, and a reader that adds a
+     * read while it is parked wakes it back up.
+     */
+    private class GatingShard implements Runnable {
+
+        // one per reader, replaced by a bigger copy when a reader shows up
+        private volatile SpscRing<TagRead>[] readerRings = SpscRing.newArray(0);
+        private volatile boolean waiting = false;
+        private final GatingTable gatingTable = new GatingTable(1024);
+        private final Thread thread;
+
+        GatingShard(int index) {
+            thread = new Thread(this);
+            thread.setName(index == 0 ? "TagProcessingThread" : "TagProcessingThread-" + index);
+            thread.setDaemon(true);
+            thread.setPriority(1);
+        }
 
-                List<TagRead> tags = new ArrayList<>();
+        private void drainTo(List<TagRead> tags) {
+            SpscRing<TagRead>[] r = readerRings;
+            for (int i = 0; i < r.length; i++) {
+                r[i].drainTo(tags, MAX_BATCH);
+            }
+        }
 
-                Integer gating = pikaConfig.getKey("Reader").optIntegerObject("Gating") * 1000;
-                if (gating.equals(0)) {
-                    gating = defaultGating;
+        private boolean hasReads() {
+            SpscRing<TagRead>[] r = readerRings;
+            for (int i = 0; i < r.length; i++) {
+                if (!r[i].isEmpty()) {
+                    return true;
                 }
-                ReaderGatingStyle gatingStyle = ReaderGatingStyle.getStyle(pikaConfig.getKey("Reader").optString("Gating Style"));
+            }
+            return false;
+        }
+
+        // Called by the reader threads after adding a read
+        private void wake() {
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
 
-                logger.debug("Waiting for tag reads.... Gating: {} Style: {}", gating, gatingStyle);
-                tags.add(tagQueue.take());
+        @Override
+        public void run() {
 
-                Thread.sleep(gating); // Gating Time
-                tagQueue.drainTo(tags);
+            List<TagRead> tags = new ArrayList<>();
+            List<TagRead> closed = new ArrayList<>();
+            long gating = 0;
+            ReaderGatingStyle gatingStyle = ReaderGatingStyle.READER;
+            long nextConfigCheck = System.nanoTime();
 
-                logger.debug("Recieved {} raw tag reads to process", tags.size());
+            while (!Thread.currentThread().isInterrupted()) {
 
-                Map<String, TagRead> tagMap = new HashMap<>(1000);
-                Map<String, Double> antennaStatusMap = new HashMap<>(32);
-                               
-                // split the tags into a hash, saving the strongest read
-                tags.forEach(t -> {
-                    // Save the strongest read for each EPC value
-                    String key = switch (gatingStyle) {
+                long now = System.nanoTime();
+                if (now - nextConfigCheck >= 0) {
+                    Integer gatingMillis = pikaConfig.getKey("Reader").optIntegerObject("Gating") * 1000;
+                    if (gatingMillis.equals(0)) {
+                        gatingMillis = defaultGating;
+                    }
+                    long newGating = TimeUnit.MILLISECONDS.toNanos(gatingMillis);
+                    if (newGating < gating) {
+                        gatingTable.clampDeadlines(now + newGating);
+                    }
+                    gating = newGating;
+                    gatingStyle = ReaderGatingStyle.getStyle(pikaConfig.getKey("Reader").optString("Gating Style"));
+                    nextConfigCheck = now + TimeUnit.SECONDS.toNanos(1);
+                }
+
+                // Wait for the next read or for the oldest window to close
+                drainTo(tags);
+                if (tags.isEmpty() && (gatingTable.isEmpty() || gatingTable.nextDeadline() - now > 0)) {
+                    // check again after saying we are waiting so a read
+                    // added in between either shows up here or wakes us
+                    waiting = true;
+                    if (!hasReads()) {
+                        if (gatingTable.isEmpty()) {
+                            logger.debug("Waiting for tag reads.... Gating: {} Style: {}", TimeUnit.NANOSECONDS.toMillis(gating), gatingStyle);
+                            LockSupport.park(this);
+                        } else {
+                            // wake for the config check too in case the
+                            // gating time was cut
+                            LockSupport.parkNanos(this, Math.min(gatingTable.nextDeadline() - now, nextConfigCheck - now));
+                        }
+                    }
+                    waiting = false;
+                    now = System.nanoTime();
+                    drainTo(tags);
+                }
+
+                // Save the strongest read for each key
+                for (int i = 0; i < tags.size(); i++) {
+                    TagRead t = tags.get(i);
+                    // epcId in the top half, reader and antenna in the bottom
+                    long key = switch (gatingStyle) {
                         case ANTENNA ->
-                            t.hexEPC + t.getReaderID() + t.getReaderAntenna();
+                            ((long) t.epcId << 32) | ((t.getReaderID() & 0xFFFFFFL) << 8) | (t.getReaderAntenna() & 0xFFL);
                         case BOX ->
-                            t.hexEPC;
+                            (long) t.epcId << 32;
                         case READER ->
-                            t.hexEPC + t.getReaderID();
+                            ((long) t.epcId << 32) | ((t.getReaderID() & 0xFFFFFFL) << 8);
                         default ->
-                            t.hexEPC;
+                            (long) t.epcId << 32;
                     };
 
-                    if (tagMap.containsKey(key)) {
-                        if (tagMap.get(key).rssi.compareTo(t.rssi) < 0) {
-                            tagMap.put(key, t);
-                        }
-                    } else {
-                        tagMap.put(key, t);
-                    }
-
-                    
+                    gatingTable.offer(key, t, now + gating);
+                }
+                tags.clear();
 
-                });
+                // Close out every window that is done
+                if (gatingTable.closeExpired(now, closed) == 0) {
+                    continue;
+                }
 
-                // For each read, post it to the handler
-                tagRouter.processTagReads(tagMap.values()); 
+                logger.debug("Gating closed {} windows, {} still open", closed.size(), gatingTable.size());
+                emit(closed);
 
-                // Update some stats
-                TagRead lastChipRead = tagMap.values().stream()
-                        .sorted((t1, t2) -> t1.epochMilli.compareTo(t2.epochMilli))
-                        .skip(tagMap.size() - 1).findFirst().get();
-                StatusHandler statusHandler = StatusHandler.getInstance();
-                statusHandler.incrementReadCount(tagMap.size());
-                statusHandler.lastChipRead(lastChipRead);
+                // the router hangs on to the list
+                closed = new ArrayList<>();
+            }
+            logger.trace("Exiting " + thread.getName());
+        }
+    }
 
+    /**
+     * Where the shards merge back together. Each shard hands over its
+     * windows as they close, so batches reach the router in the order the
+     * windows closed, and the stats are only ever updated by one shard at a
+     * time.
+     */
+    private synchronized void emit(List<TagRead> closed) {
+        // For each read, post it to the handler
+        tagRouter.processTagReads(closed);
+
+        // Update some stats
+        TagRead lastChipRead = closed.get(0);
+        for (int i = 1; i < closed.size(); i++) {
+            TagRead t = closed.get(i);
+            if (t.epochMilli > lastChipRead.epochMilli) {
+                lastChipRead = t;
             }
-        } catch (InterruptedException ex) {
-            logger.trace("Exiting " + tagProcessingThread.getName());
         }
+        statusHandler.incrementReadCount(closed.size());
+        statusHandler.lastChipRead(lastChipRead);
     }
 
-    public void processTagRead(TagRead tr) {
-        logger.trace("Entering TagDAO::processTagRead");
+    // Start the gating threads, one per core unless the config says otherwise
+    private synchronized GatingShard[] startShards() {
+        if (shards != null) {
+            return shards;
+        }
+        int count = pikaConfig.getKey("Reader").optInt("Gating Threads", 0);
+        if (count <= 0) {
+            count = Runtime.getRuntime().availableProcessors();
+        }
+        GatingShard[] s = new GatingShard[count];
+        for (int i = 0; i < count; i++) {
+            s[i] = new GatingShard(i);
+            s[i].thread.start();
+        }
+        logger.info("Gating with {} threads", count);
+        shards = s;
+        return s;
+    }
 
-        // Start the tag processing thread
-        if (tagProcessingThread == null) {
+    /**
+     * The rings from a reader into each shard, set up the first time the
+     * reader shows up.
+     */
+    private SpscRing<TagRead>[] readerRings(int reader, GatingShard[] s) {
+        SpscRing<TagRead>[][] r = rings;
+        if (reader < r.length && r[reader] != null) {
+            return r[reader];
+        }
+        synchronized (this) {
+            r = rings;
+            if (reader < r.length && r[reader] != null) {
+                return r[reader];
+            }
+            // roughly the old 100000 read queue for each reader
+            int capacity = Math.max(4096, 65536 / s.length);
+            SpscRing<TagRead>[] row = SpscRing.newArray(s.length);
+            for (int i = 0; i < s.length; i++) {
+                row[i] = new SpscRing<>(capacity);
+                SpscRing<TagRead>[] shardRings = Arrays.copyOf(s[i].readerRings, s[i].readerRings.length + 1);
+                shardRings[shardRings.length - 1] = row[i];
+                s[i].readerRings = shardRings;
+            }
+            SpscRing<TagRead>[][] grown = Arrays.copyOf(r, Math.max(r.length, reader + 1));
+            grown[reader] = row;
+            rings = grown;
+            logger.debug("Added gating rings for reader {}", reader);
+            return row;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static SpscRing<TagRead>[][] emptyRings() {
+        return new SpscRing[0][];
+    }
 
-            tagProcessingThread = new Thread(TagReadProcessor.getInstance());
-            tagProcessingThread.setName("TagProcessingThread");
-            tagProcessingThread.setDaemon(true);
-            tagProcessingThread.setPriority(1);
+    public JSONObject getStatus() {
+        JSONObject status = new JSONObject();
+        GatingShard[] s = shards;
+        status.put("gatingThreads", s == null ? 0 : s.length);
+        long queued = 0;
+        long dropped = 0;
+        for (SpscRing<TagRead>[] row : rings) {
+            if (row != null) {
+                for (SpscRing<TagRead> ring : row) {
+                    queued += ring.size();
+                    dropped += ring.dropped();
+                }
+            }
+        }
+        status.put("gatingQueued", queued);
+        status.put("gatingDropped", dropped);
+        return status;
+    }
 
-            tagProcessingThread.start();
+    /**
+     * Hand a raw read to gating. Called from the reader threads, one thread
+     * per reader. This never blocks or throws: if gating has fallen so far
+     * behind that the reader's ring is full the read is dropped, counted and
+     * logged (it is still in the raw archive if that is turned on).
+     */
+    public void processTagRead(TagRead tr) {
+        logger.trace("Entering TagDAO::processTagRead");
 
+        // Start the tag processing threads
+        GatingShard[] s = shards;
+        if (s == null) {
+            s = startShards();
         }
 
-        logger.debug("TagRead: {} Timestamp: {} Reader: {} Antenna: {} RSSI: {}", tr.getEPCDecimal(), tr.getTimestamp().format(formatter), tr.readerID, tr.antennaPortNumber, tr.rssi);
-        tagQueue.add(tr);
+        if (logger.isDebugEnabled()) {
+            logger.debug("TagRead: {} Timestamp: {} Reader: {} Antenna: {} RSSI: {}", tr.getEPCDecimal(), tr.getTimestamp().format(formatter), tr.readerID, tr.antennaPortNumber, tr.rssi);
+        }
+        // spread the chips out, ids are handed out in order so mix them up
+        int shard = Math.floorMod(tr.epcId * 0x9E3779B9, s.length);
+        boolean added;
+        if (tr.readerID != null && tr.readerID >= 0 && tr.readerID < MAX_READERS) {
+            added = readerRings(tr.readerID, s)[shard].offer(tr);
+        } else {
+            synchronized (sharedRingLock) {
+                added = readerRings(MAX_READERS, s)[shard].offer(tr);
+            }
+        }
+        if (added) {
+            s[shard].wake();
+        } else {
+            long now = System.currentTimeMillis();
+            long last = lastOverflowWarning.get();
+            if (now - last > 10000 && lastOverflowWarning.compareAndSet(last, now)) {
+                logger.warn("Gating is falling behind, dropping raw reads from reader {}", tr.readerID);
+            }
+        }
 
+        // Every read, before gating, if the raw archive is turned on
+        rawArchive.add(tr);
         
         statusHandler.postRead(tr);
         
         // Beep if we have not seen the tag before or have not seen it in the last 5 seconds. 
         // TODO:  Replace the AWT Toolkit beep with something better
-        if (seenTags.containsKey(tr.hexEPC)) {
-            if (Duration.between(seenTags.get(tr.hexEPC).timestamp, tr.timestamp).toSeconds() > 5) {
-                seenTags.put(tr.hexEPC, tr);
+        if (seenTags.containsKey(tr.epcId)) {
+            if (Duration.between(seenTags.get(tr.epcId).timestamp, tr.timestamp).toSeconds() > 5) {
+                seenTags.put(tr.epcId, tr);
                 Toolkit.getDefaultToolkit().beep();
             }
         } else {
-            seenTags.put(tr.hexEPC, tr);
+            seenTags.put(tr.epcId, tr);
             Toolkit.getDefaultToolkit().beep();
         }
 
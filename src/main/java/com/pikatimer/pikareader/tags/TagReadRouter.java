@@ -19,9 +19,11 @@ package com.pikatimer.pikareader.tags;
 import com.pikatimer.pikareader.conf.PikaConfig;
 import com.pikatimer.pikareader.http.HTTPHandler;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,12 +33,14 @@ import org.slf4j.LoggerFactory;
  */
 public class TagReadRouter implements Runnable {
 
-    private static final BlockingQueue<Collection<TagRead>> tagQueue = new ArrayBlockingQueue<>(100);
     private static final Logger logger = LoggerFactory.getLogger(TagReadRouter.class);
     private static final PikaConfig pikaConfig = PikaConfig.getInstance();
     private static final HTTPHandler httpHandler = HTTPHandler.getInstance();
     private static final TagDB tagDB = TagDB.getInstance();
 
+    // A slow websocket client or DB spills to disk instead of blocking gating
+    private static final SpillQueue tagQueue = new SpillQueue("TagReadRouter", tagDB.getPath().resolve("router" + SpillQueue.SPILL_SUFFIX), 100);
+
     DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSS");
 
     private Thread tagRoutingThread;
@@ -59,18 +63,32 @@ public class TagReadRouter implements Runnable {
     @Override
     public void run() {
 
+        // {DB batch, our queue mark} for everything the DB hasn't journaled yet
+        Deque<long[]> undurable = new ArrayDeque<>();
         try {
             while (true) {
-                Collection<TagRead> tr = tagQueue.take();
-                             
-                // send a copy to the DB
-                tagDB.addReads(tr);
-                
-                // send a copy to the websocket handler
-                httpHandler.sendTags(tr);
-                
-                // if we are uploading to PikaTagRelay, send a copy there too
-                
+                Collection<TagRead> tr = tagQueue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (tr != null) {
+                    // send a copy to the DB
+                    long batch = tagDB.addReads(tr);
+                    undurable.add(new long[]{batch, tagQueue.mark()});
+
+                    // send a copy to the websocket handler
+                    httpHandler.sendTags(tr);
+
+                    // if we are uploading to PikaTagRelay, send a copy there too
+                }
+
+                // Once the DB has it in the journal we don't need to route it
+                // again after a restart. Until then it is only in memory.
+                long mark = -1;
+                while (!undurable.isEmpty() && tagDB.isDurable(undurable.peek()[0])) {
+                    mark = undurable.poll()[1];
+                }
+                if (mark >= 0) {
+                    tagQueue.commit(mark);
+                }
             }
         } catch (InterruptedException ex) {
             logger.trace("Exiting " + tagRoutingThread.getName());
@@ -100,4 +118,8 @@ public class TagReadRouter implements Runnable {
 
     }
 
+    public JSONObject getStatus() {
+        return tagQueue.getStatus();
+    }
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.tags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the TagDB sequence numbers.
+ *
+ * Every read added to the TagDB gets the next number, which is saved with
+ * the read, so a client can ask for everything after the last one it saw.
+ * Numbers start at 1 and only ever go up, across restarts and sessions.
+ *
+ * Rather than saving the counter on every read we reserve a block of numbers
+ * at a time and save the top of the block in db.seq. After a restart we
+ * start from the saved top, so the numbers that were reserved but never used
+ * are skipped. Gaps are fine, going backwards is not.
+ *
+ * Only the TagDBThread hands out numbers.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+class TagSequence {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagSequence.class);
+
+    static final String SEQUENCE_FILE = "db.seq";
+    private static final long BLOCK = 1 << 20;
+
+    private final Path sequencePath;
+    private FileChannel channel;
+
+    // next number to hand out and the top of the saved block
+    private volatile long next = 1;
+    private long ceiling = 0;
+
+    TagSequence(Path dbPath) {
+        sequencePath = dbPath.resolve(SEQUENCE_FILE);
+        try {
+            channel = FileChannel.open(sequencePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer b = ByteBuffer.allocate(8);
+            while (b.hasRemaining() && channel.read(b, b.position()) >= 0) {
+            }
+            if (b.position() == 8) {
+                ceiling = b.flip().getLong();
+                next = Math.max(1, ceiling);
+            }
+            logger.info("Starting TagDB sequence numbers at {}", next);
+        } catch (IOException ex) {
+            logger.error("Unable to open {}, sequence numbers may repeat after a restart", sequencePath, ex);
+            channel = null;
+        }
+    }
+
+    /**
+     * Make sure we never hand out a number that is already on disk, in case
+     * db.seq was lost.
+     */
+    void observe(long sequence) {
+        if (sequence >= next) {
+            next = sequence + 1;
+        }
+    }
+
+    long next() {
+        long n = next;
+        if (n >= ceiling) {
+            reserve(n + BLOCK);
+        }
+        next = n + 1;
+        return n;
+    }
+
+    /**
+     * The last number handed out.
+     */
+    long last() {
+        return next - 1;
+    }
+
+    private void reserve(long top) {
+        ceiling = top;
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.allocate(8).putLong(top).flip();
+            while (b.hasRemaining()) {
+                channel.write(b, b.position());
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            logger.error("Unable to save the TagDB sequence to {}", sequencePath, ex);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 John Garner <segfaultcoredump@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pikatimer.pikareader.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single producer / single consumer ring buffer.
+ *
+ * The slots are allocated up front and there are no locks: the producer
+ * only ever moves the tail and the consumer only ever moves the head. Each
+ * side keeps its own copy of the other side's position and only goes back
+ * to the shared one when the copy says the ring is full (or empty), so in
+ * the common case an offer or a drain touches nothing the other thread is
+ * writing to.
+ *
+ * When the ring is full offer() drops the new element and counts it rather
+ * than blocking or throwing, so it is safe to call straight from a reader
+ * callback.
+ *
+ * Exactly one thread may call offer() and exactly one thread may drain.
+ *
+ * @author John Garner <segfaultcoredump@gmail.com>
+ */
+public final class SpscRing<E> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    // next slot to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // each side's last look at the other side
+    private long headCache = 0;
+    private long tailCache = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element, producer side only. Returns false (and counts it) if
+     * the ring is full.
+     */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - headCache >= slots.length) {
+            headCache = head.get();
+            if (t - headCache >= slots.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        slots[(int) t & mask] = e;
+        // a full volatile write so a consumer about to park sees it
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Move up to max elements into the collection, consumer side only.
+     *
+     * @return the number of elements moved
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int max) {
+        long h = head.get();
+        if (tailCache - h <= 0) {
+            tailCache = tail.get();
+            if (tailCache - h <= 0) {
+                return 0;
+            }
+        }
+        int n = (int) Math.min(tailCache - h, max);
+        for (int i = 0; i < n; i++) {
+            int slot = (int) (h + i) & mask;
+            c.add((E) slots[slot]);
+            slots[slot] = null;
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+
+    /**
+     * An empty array of rings. Java can't create a generic array directly,
+     * so this is the one place that has to go through a raw one.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <E> SpscRing<E>[] newArray(int length) {
+        return new SpscRing[length];
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Elements turned away because the ring was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+}